@@ -1,21 +1,39 @@
 
-
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
+import java.io.PushbackInputStream;
 import java.net.Socket;
 import java.nio.ByteBuffer;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 public class Client implements Runnable {
 
-	public BlockingQueue<UniversalDTO> receivedFromServerQueue = new ArrayBlockingQueue<>(1024);
-	public BlockingQueue<UniversalDTO> willSendToServerQueue = new ArrayBlockingQueue<>(1024);
-	
+	/** Connection to the shell, this client is its server side */
+	public final ClientChannel channel;
+
 	private String serverAddr;
-	
+
+	/** Decompresses frames the server sent compressed, lives as long as the connection */
+	private Inflater inflater = new Inflater();
+	private byte[] compressedBuf = new byte[8192];
+	private byte[] inflatedBuf = new byte[65536];
+
 	public Client(String serverAddr) {
+		this(serverAddr, new ClientChannel());
+	}
+	
+	/**
+	 * @param serverAddr host name or address of the server
+	 * @param channel receives everything the server sends, and gives messages to send to the server
+	 */
+	public Client(String serverAddr, ClientChannel channel) {
 		this.serverAddr = serverAddr;
+		this.channel = channel;
 	}
 
 	@Override
@@ -23,25 +41,26 @@ public class Client implements Runnable {
 		Socket sock = null;
 		try {
 			sock = new Socket(serverAddr, Server.SERVER_ADDR.getPort());
-			
+			PushbackInputStream in = new PushbackInputStream(sock.getInputStream());
+
 			while(true) {
-				ObjectInputStream inStream = new ObjectInputStream(sock.getInputStream());
-				UniversalDTO dto = (UniversalDTO) inStream.readObject();
-				receivedFromServerQueue.put(dto);
-				
+				UniversalDTO dto = readFrame(in);
+				while(!channel.offerFromServer(dto)) {
+					// Shell does not keep up with events, only this thread waits and the socket buffers meanwhile
+					LockSupport.parkNanos(1_000_000L);
+				}
+
+				if(dto.getEvent().equals("join-acknowledge") && dto.getData().length > 1 && dto.getData()[1] == 1.0f) {
+					// Server offers compression, accept it
+					send(sock, new UniversalDTO(-1, "client", "request-compression", new float[0]));
+				}
+
 				UniversalDTO toServerDTO;
-				while((toServerDTO = willSendToServerQueue.poll()) != null) {
-					ByteBuffer toServerDTOBuf = toServerDTO.asBuffer();
-					int dtoLen = toServerDTOBuf.limit();
-					
-					ByteBuffer buf = ByteBuffer.allocate(4 + dtoLen);
-					buf.putInt(dtoLen);
-					buf.put(toServerDTOBuf);
-					
-					sock.getOutputStream().write(buf.array());
+				while((toServerDTO = channel.pollToServer()) != null) {
+					send(sock, toServerDTO);
 				}
 			}
-			
+
 		} catch (Exception e) {
 			e.printStackTrace();
 			System.exit(1);
@@ -54,4 +73,54 @@ public class Client implements Runnable {
 		}
 	}
 
+	/**
+	 * Reads either a plain serialized DTO or a compressed frame, see {@link FrameCompressor}.
+	 */
+	private UniversalDTO readFrame(PushbackInputStream in) throws IOException, ClassNotFoundException, DataFormatException {
+		int marker = in.read();
+		if(marker == -1) {
+			throw new IOException("Connection closed by server");
+		}
+
+		if(marker != FrameCompressor.COMPRESSED_FRAME_MARKER) {
+			// Plain serialized object, give back the first byte of the stream header
+			in.unread(marker);
+			return (UniversalDTO) new ObjectInputStream(in).readObject();
+		}
+
+		DataInputStream dataIn = new DataInputStream(in);
+		int compressedLen = dataIn.readInt();
+		if(compressedBuf.length < compressedLen) {
+			compressedBuf = new byte[compressedLen];
+		}
+		dataIn.readFully(compressedBuf, 0, compressedLen);
+
+		inflater.setInput(compressedBuf, 0, compressedLen);
+		int inflatedLen = 0;
+		while(!inflater.needsInput() || inflatedLen == inflatedBuf.length) {
+			if(inflatedLen == inflatedBuf.length) {
+				inflatedBuf = Arrays.copyOf(inflatedBuf, 2 * inflatedBuf.length);
+			}
+
+			int inflated = inflater.inflate(inflatedBuf, inflatedLen, inflatedBuf.length - inflatedLen);
+			if(inflated == 0 && inflater.needsDictionary()) {
+				inflater.setDictionary(FrameCompressor.getDictionary());
+			}
+			inflatedLen += inflated;
+		}
+
+		return (UniversalDTO) new ObjectInputStream(new ByteArrayInputStream(inflatedBuf, 0, inflatedLen)).readObject();
+	}
+
+	private void send(Socket sock, UniversalDTO dto) throws IOException {
+		ByteBuffer toServerDTOBuf = dto.asBuffer();
+		int dtoLen = toServerDTOBuf.limit();
+
+		ByteBuffer buf = ByteBuffer.allocate(4 + dtoLen);
+		buf.putInt(dtoLen);
+		buf.put(toServerDTOBuf);
+
+		sock.getOutputStream().write(buf.array());
+	}
+
 }
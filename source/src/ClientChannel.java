@@ -0,0 +1,111 @@
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands messages between the thread talking to the server and the thread running the client, without either
+ * of them ever blocking or taking a lock.
+ *
+ * Messages to the server go through a ring in order. Messages from the server are split: full snapshots replace
+ * each other in a single slot, since only the newest one matters, everything else goes through a ring in order.
+ * Each message from the server is numbered, so the client still handles them in the order the server sent them,
+ * and partial snapshots older than a waiting full snapshot are skipped, since it overwrites all their entities.
+ *
+ * The server side, that is either a {@link Client} or a {@link Server} running in the same process, and the
+ * client side must each be a single thread. Another thread may take over the server side once the previous one
+ * has ended, e.g. a client after a local server was terminated and joined.
+ */
+public class ClientChannel {
+	/** Messages in each direction that can be waiting, like the queues used before */
+	private static final int CAPACITY = 1024;
+
+	private static class Sequenced {
+		final UniversalDTO dto;
+		final long sequence;
+
+		Sequenced(UniversalDTO dto, long sequence) {
+			this.dto = dto;
+			this.sequence = sequence;
+		}
+	}
+
+	private final SpscRing<UniversalDTO> toServer = new SpscRing<>(CAPACITY);
+	private final SpscRing<Sequenced> fromServer = new SpscRing<>(CAPACITY);
+	/** Newest full snapshot not taken by the client yet, null if there is none */
+	private final AtomicReference<Sequenced> latestSnapshot = new AtomicReference<>();
+
+	/** Number of the next message from the server, only used by the server side */
+	private long nextSequence;
+
+	/**
+	 * Only to be called by the client side.
+	 *
+	 * @return false if the server side does not keep up and the message was dropped
+	 */
+	public boolean offerToServer(UniversalDTO dto) {
+		return toServer.offer(dto);
+	}
+
+	/**
+	 * Only to be called by the server side.
+	 *
+	 * @return oldest message to the server, or null if there is none
+	 */
+	public UniversalDTO pollToServer() {
+		return toServer.poll();
+	}
+
+	/**
+	 * Only to be called by the server side. Full snapshots always succeed, replacing a full snapshot the client
+	 * did not take yet.
+	 *
+	 * @param dto is handed over as is and must not be modified afterwards
+	 * @return false if the client does not keep up and the message was not added, it may be offered again later
+	 */
+	public boolean offerFromServer(UniversalDTO dto) {
+		if(dto.getEvent().equals("update-full")) {
+			latestSnapshot.set(new Sequenced(dto, nextSequence++));
+			return true;
+		}
+
+		if(!fromServer.offer(new Sequenced(dto, nextSequence))) {
+			return false;
+		}
+
+		++nextSequence;
+		return true;
+	}
+
+	/**
+	 * Only to be called by the client side.
+	 *
+	 * @return oldest message from the server that is not obsolete, or null if there is none
+	 */
+	public UniversalDTO pollFromServer() {
+		while(true) {
+			// Read the slot before the ring, so a message added before the snapshot is always seen with it
+			Sequenced snapshot = latestSnapshot.get();
+			Sequenced message = fromServer.peek();
+
+			if(snapshot != null && (message == null || snapshot.sequence < message.sequence)) {
+				if(latestSnapshot.compareAndSet(snapshot, null)) {
+					return snapshot.dto;
+				}
+
+				// Replaced by a newer snapshot in the meantime, look again
+				continue;
+			}
+
+			if(message == null) {
+				return null;
+			}
+
+			fromServer.poll();
+
+			if(snapshot != null && message.dto.getEvent().equals("update-partial")) {
+				// Older than the waiting full snapshot, which is taken next
+				continue;
+			}
+
+			return message.dto;
+		}
+	}
+}
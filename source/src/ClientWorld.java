@@ -0,0 +1,370 @@
+/**
+ * The world as a client sees it, built from the snapshots and events the server sends.
+ *
+ * Entities have the same layout as in the {@link World} the server simulates, but there is only a single
+ * frame of them, since the history for time reversal is of no use on the client. Besides the entities, the
+ * client keeps the roster of players and predicts the movement of its own player.
+ */
+public class ClientWorld {
+	/** Maximum amount of steering inputs the client remembers until the server acknowledges them */
+	private static final int PENDING_INPUTS_MAX = 1024;
+	
+	public float[] entities = new float[World.ENTITY_SIZE * World.ENTITY_COUNT_MAX];
+	public int localPlayerID = -1;
+	
+	/** Index of the entities by position, kept up to date whenever entities change */
+	private final SpatialGrid grid = new SpatialGrid();
+	
+	private float remainingGameDuration = World.GAME_DURATION + World.PREPARE_TIME;
+	
+	/** Names of all logged in users, sorted by score descending */
+	private String[] usernames = new String[0];
+	private int[] userIDs = new int[0];
+	private int[] scores = new int[0];
+	
+	/** Sequence number of the last steering input of the local player the server applied */
+	private int localAcknowledgedInput;
+	
+	/**
+	 * Ring buffer of steering inputs the client predicted but the server did not acknowledge yet,
+	 * stored as tuples of sequence number, direction x, direction y and frame delta time.
+	 */
+	private float[] pendingInputs = new float[4 * PENDING_INPUTS_MAX];
+	private int pendingInputsStart;
+	private int pendingInputsCount;
+	
+	/**
+	 * Called by the client with data from the server to work server updates into the world.
+	 *
+	 * @param dto
+	 */
+	public void handleDTO(UniversalDTO dto) {
+		String evt = dto.getEvent();
+		
+		if(evt.equals("update-full")) {
+			float[] data = dto.getData();
+			int entitiesStart = handleSnapshotHeader(data);
+			
+			System.arraycopy(data, entitiesStart, entities, 0, World.ENTITY_SIZE * World.ENTITY_COUNT_MAX);
+			grid.updateAll(entities);
+			
+			reconcileLocalPlayer();
+		} else if(evt.equals("update-partial")) {
+			// Same header as a full update, then only some entities, each prefixed by its ID
+			float[] data = dto.getData();
+			int countOffset = handleSnapshotHeader(data);
+			int entityCount = Math.round(data[countOffset]);
+			boolean containsLocalPlayer = false;
+			
+			for(int i = 0; i < entityCount; ++i) {
+				int packedOffset = countOffset + 1 + i * (1 + World.ENTITY_SIZE);
+				int id = Math.round(data[packedOffset]);
+				System.arraycopy(data, packedOffset + 1, entities, id * World.ENTITY_SIZE, World.ENTITY_SIZE);
+				grid.update(entities, id);
+				
+				containsLocalPlayer |= (id == localPlayerID);
+			}
+			
+			if(containsLocalPlayer) {
+				// Otherwise the local player is still predicted and pending inputs must not be replayed again
+				reconcileLocalPlayer();
+			}
+		} else if(evt.equals("roster-join")) {
+			addToRoster(dto.getUsername(), Math.round(dto.getData()[0]), Math.round(dto.getData()[1]));
+			sortScores();
+		} else if(evt.equals("roster-leave")) {
+			int id = Math.round(dto.getData()[0]);
+			int idx = playerIDToRosterIdx(id);
+			if(idx != -1) {
+				removeFromRoster(idx);
+			}
+			
+			if(id == localPlayerID) {
+				// Server let go of this client, wait for the next join acknowledgement before steering again
+				localPlayerID = -1;
+			}
+		} else if(evt.equals("roster-score")) {
+			float[] data = dto.getData();
+			for(int i = 0; i < data.length; i += 2) {
+				int idx = playerIDToRosterIdx(Math.round(data[i]));
+				if(idx != -1) {
+					scores[idx] = Math.round(data[i + 1]);
+				}
+			}
+			sortScores();
+		} else if(evt.equals("join-acknowledge")) {
+			localPlayerID = (int) dto.getData()[0];
+			System.out.println("Server acknowledged this player joining and assigned UID: " + localPlayerID);
+		}
+	}
+	
+	/**
+	 * Reads acknowledged inputs and remaining time shared by full and partial updates.
+	 *
+	 * @param data
+	 * @return index of the first float after the header
+	 */
+	private int handleSnapshotHeader(float[] data) {
+		int playerCount = Math.round(data[0]);
+		
+		for(int i = 0; i < playerCount; ++i) {
+			if(Math.round(data[1 + 2 * i]) == localPlayerID) {
+				localAcknowledgedInput = Math.round(data[1 + 2 * i + 1]);
+			}
+		}
+		
+		remainingGameDuration = data[1 + 2 * playerCount];
+		
+		return 1 + 2 * playerCount + 1;
+	}
+	
+	/**
+	 * Makes this world look the same as another one, e.g. to hand a consistent copy to another thread.
+	 * Only the visible state is copied, not the inputs waiting to be acknowledged. Roster arrays are only
+	 * reallocated if the number of players changed.
+	 *
+	 * @param other
+	 */
+	public void copyFrom(ClientWorld other) {
+		System.arraycopy(other.entities, 0, entities, 0, entities.length);
+		grid.copyFrom(other.grid);
+		
+		localPlayerID = other.localPlayerID;
+		remainingGameDuration = other.remainingGameDuration;
+		
+		int playerCount = other.usernames.length;
+		if(usernames.length != playerCount) {
+			usernames = new String[playerCount];
+			userIDs = new int[playerCount];
+			scores = new int[playerCount];
+		}
+		
+		System.arraycopy(other.usernames, 0, usernames, 0, playerCount);
+		System.arraycopy(other.userIDs, 0, userIDs, 0, playerCount);
+		System.arraycopy(other.scores, 0, scores, 0, playerCount);
+	}
+	
+	public void set(int entityID, int component, float val) {
+		entities[entityID * World.ENTITY_SIZE + component] = val;
+		grid.update(entities, entityID);
+	}
+	
+	public float get(int entityID, int component) {
+		return entities[entityID * World.ENTITY_SIZE + component];
+	}
+	
+	private int playerIDToRosterIdx(int id) {
+		for(int i = 0; i < userIDs.length; ++i) {
+			if(userIDs[i] == id) {
+				return i;
+			}
+		}
+		
+		return -1;
+	}
+	
+	private void addToRoster(String name, int id, int score) {
+		String[] newUsernames = new String[usernames.length + 1];
+		int[] newUserIds = new int[usernames.length + 1];
+		int[] newScores = new int[usernames.length + 1];
+		
+		newUsernames[0] = name;
+		newUserIds[0] = id;
+		newScores[0] = score;
+		
+		System.arraycopy(usernames, 0, newUsernames, 1, usernames.length);
+		System.arraycopy(userIDs, 0, newUserIds, 1, usernames.length);
+		System.arraycopy(scores, 0, newScores, 1, usernames.length);
+		
+		usernames = newUsernames;
+		userIDs = newUserIds;
+		scores = newScores;
+	}
+	
+	private void removeFromRoster(int idx) {
+		String[] newUsernames = new String[usernames.length - 1];
+		int[] newUserIds = new int[usernames.length - 1];
+		int[] newScores = new int[usernames.length - 1];
+		
+		System.arraycopy(scores, 0, newScores, 0, idx);
+		System.arraycopy(scores, idx+1, newScores, idx, newScores.length - idx);
+		
+		System.arraycopy(userIDs, 0, newUserIds, 0, idx);
+		System.arraycopy(userIDs, idx+1, newUserIds, idx, newScores.length - idx);
+		
+		System.arraycopy(usernames, 0, newUsernames, 0, idx);
+		System.arraycopy(usernames, idx+1, newUsernames, idx, newScores.length - idx);
+		
+		scores = newScores;
+		userIDs = newUserIds;
+		usernames = newUsernames;
+	}
+	
+	private void sortScores() {
+		// Same selection sort as the server, the roster is short
+		for(int i = 0; i < scores.length; ++i) {
+			int maxIdx = i;
+			
+			for(int j = i+1; j < scores.length; ++j) {
+				if(scores[j] > scores[maxIdx]) {
+					maxIdx = j;
+				}
+			}
+			
+			String swapS = usernames[i];
+			usernames[i] = usernames[maxIdx];
+			usernames[maxIdx] = swapS;
+			
+			int swapI = scores[i];
+			scores[i] = scores[maxIdx];
+			scores[maxIdx] = swapI;
+			
+			swapI = userIDs[i];
+			userIDs[i] = userIDs[maxIdx];
+			userIDs[maxIdx] = swapI;
+		}
+	}
+	
+	/**
+	 * Called by the client right after sending a steering input to move the local player
+	 * immediately instead of waiting for the server to echo the input back.
+	 * 
+	 * The input is remembered until a snapshot acknowledges it, so it can be replayed on top
+	 * of the authoritative state.
+	 *
+	 * @param sequence sequence number that was sent along with the input
+	 * @param directionX
+	 * @param directionY
+	 * @param dt time the input was held
+	 */
+	public void predictLocalPlayer(int sequence, float directionX, float directionY, float dt) {
+		if(localPlayerID == -1) {
+			return;
+		}
+		
+		if(pendingInputsCount == PENDING_INPUTS_MAX) {
+			// Server is lagging far behind, forget the oldest input
+			pendingInputsStart = (pendingInputsStart + 1) % PENDING_INPUTS_MAX;
+			--pendingInputsCount;
+		}
+		
+		int inputOffset = 4 * ((pendingInputsStart + pendingInputsCount) % PENDING_INPUTS_MAX);
+		pendingInputs[inputOffset + 0] = sequence;
+		pendingInputs[inputOffset + 1] = directionX;
+		pendingInputs[inputOffset + 2] = directionY;
+		pendingInputs[inputOffset + 3] = dt;
+		++pendingInputsCount;
+		
+		applyLocalInput(directionX, directionY, dt);
+	}
+	
+	/**
+	 * Drops all predicted inputs that the last snapshot already acknowledged and
+	 * replays the remaining ones on top of the authoritative local player state.
+	 */
+	private void reconcileLocalPlayer() {
+		if(localPlayerID == -1) {
+			return;
+		}
+		
+		while(pendingInputsCount > 0 && pendingInputs[4 * pendingInputsStart] <= localAcknowledgedInput) {
+			pendingInputsStart = (pendingInputsStart + 1) % PENDING_INPUTS_MAX;
+			--pendingInputsCount;
+		}
+		
+		for(int i = 0; i < pendingInputsCount; ++i) {
+			int inputOffset = 4 * ((pendingInputsStart + i) % PENDING_INPUTS_MAX);
+			applyLocalInput(pendingInputs[inputOffset + 1], pendingInputs[inputOffset + 2], pendingInputs[inputOffset + 3]);
+		}
+	}
+	
+	/**
+	 * Applies steering to the local player with the same rules the server uses.
+	 */
+	private void applyLocalInput(float directionX, float directionY, float dt) {
+		if(remainingGameDuration > World.GAME_DURATION || remainingGameDuration <= 0) {
+			// Server does not integrate outside of the game
+			return;
+		}
+		
+		// Server freezes controls while time is reversed
+		if(get(localPlayerID, World.REVERSED) == 0.0f) {
+			set(localPlayerID, World.VELOCITY_X, directionX * Server.PLAYER_VELOCITY_MAGNITUDE);
+			set(localPlayerID, World.VELOCITY_Y, directionY * Server.PLAYER_VELOCITY_MAGNITUDE);
+		}
+		
+		World.integratePosition(entities, localPlayerID * World.ENTITY_SIZE, dt);
+		grid.update(entities, localPlayerID);
+	}
+	
+	/**
+	 * Finds entities that may overlap the given rectangle in world coordinates, without looking at all entities.
+	 * Found entities can still be outside the rectangle and have to be checked again if that matters.
+	 *
+	 * @param result receives the IDs of the found entities in no particular order, needs room for {@link World#ENTITY_COUNT_MAX}
+	 * @return number of IDs written to result
+	 */
+	public int findEntitiesNear(float minX, float minY, float maxX, float maxY, int[] result) {
+		return grid.query(minX, minY, maxX, maxY, result);
+	}
+	
+	/**
+	 * @return remaining time of the game in seconds as of the newest snapshot
+	 */
+	public float getRemainingGameDuration() {
+		return remainingGameDuration;
+	}
+	
+	/**
+	 * @return names of all players sorted by score descending, must not be modified
+	 */
+	public String[] getUsernames() {
+		return usernames;
+	}
+	
+	/**
+	 * @return entity IDs of all players in the same order as {@link #getUsernames()}, must not be modified
+	 */
+	public int[] getUserIDs() {
+		return userIDs;
+	}
+	
+	/**
+	 * @return scores of all players in the same order as {@link #getUsernames()}, must not be modified
+	 */
+	public int[] getScores() {
+		return scores;
+	}
+	
+	/**
+	 * Gets the X coordinate of the center point of the currently visible portion of the world.
+	 * @return
+	 */
+	public float getCameraPositionX() {
+		if(localPlayerID == -1) {
+			return 0.0f;
+		}
+		
+		float camPosXMin = World.MIN_POSITION_X + World.VIEW_WIDTH / 2.0f;
+		float camPosXMax = World.MAX_POSITION_X - World.VIEW_WIDTH / 2.0f;
+		float camPosX = Math.min(Math.max(get(localPlayerID, World.POSITION_X), camPosXMin), camPosXMax);
+		
+		return camPosX;
+	}
+	
+	/**
+	 * Gets the Y coordinate of the center point of the currently visible portion of the world.
+	 * @return
+	 */
+	public float getCameraPositionY() {
+		if(localPlayerID == -1) {
+			return 0.0f;
+		}
+		
+		float camPosYMin = World.MIN_POSITION_Y + World.VIEW_HEIGHT / 2.0f;
+		float camPosYMax = World.MAX_POSITION_Y - World.VIEW_HEIGHT / 2.0f;
+		float camPosY = Math.min(Math.max(get(localPlayerID, World.POSITION_Y), camPosYMin), camPosYMax);
+		
+		return camPosY;
+	}
+}
@@ -0,0 +1,127 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses the frames the server sends to one client with a deflate stream that lives as long as the connection.
+ *
+ * Compressed frames start with {@link #COMPRESSED_FRAME_MARKER}, followed by the length of the compressed
+ * bytes. Uncompressed frames are plain serialized DTOs, which always start with the serialization magic
+ * number, so the client can tell both apart and the server is free to send uncompressed frames at any time.
+ *
+ * The compressor keeps track of the time spent and the bytes saved. If after a couple of frames
+ * compression does not pay off, it turns itself off and the client gets uncompressed frames again.
+ */
+public class FrameCompressor {
+	/** First byte of a compressed frame, uncompressed frames start with 0xAC */
+	public static final byte COMPRESSED_FRAME_MARKER = 0;
+
+	/** Amount of frames compressed before deciding whether compression is worth it */
+	private static final int EVALUATION_FRAMES = 30;
+	/** Compression is turned off when it saves less bytes than this for every millisecond spent compressing */
+	private static final long MIN_BYTES_SAVED_PER_MS = 4096;
+
+	private static byte[] dictionary;
+
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	private byte[] deflated = new byte[8192];
+	private boolean enabled = true;
+
+	private long framesCompressed;
+	private long uncompressedBytes;
+	private long compressedBytes;
+	private long compressNanos;
+
+	public FrameCompressor() {
+		deflater.setDictionary(getDictionary());
+	}
+
+	/**
+	 * Preset dictionary known to both server and client, consisting of a serialized DTO so the class
+	 * description and event names compress well from the very first frame.
+	 *
+	 * @return the dictionary, must not be modified
+	 */
+	public static synchronized byte[] getDictionary() {
+		if(dictionary == null) {
+			ByteBuffer buf = new UniversalDTO(-1, "", "update-full", new float[0]).asBuffer();
+			dictionary = Arrays.copyOf(buf.array(), buf.limit());
+		}
+
+		return dictionary;
+	}
+
+	/**
+	 * Compresses a frame, or returns null if compression is turned off and the frame should be sent uncompressed.
+	 *
+	 * @param frame heap buffer with the serialized DTO between position and limit, is not modified
+	 * @return the compressed frame including marker and length
+	 */
+	public ByteBuffer compress(ByteBuffer frame) {
+		if(!enabled) {
+			return null;
+		}
+
+		long startTime = System.nanoTime();
+
+		deflater.setInput(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+		int deflatedLen = 0;
+		while(true) {
+			deflatedLen += deflater.deflate(deflated, deflatedLen, deflated.length - deflatedLen, Deflater.SYNC_FLUSH);
+
+			if(deflatedLen < deflated.length) {
+				// Output did not fill the buffer, so everything is flushed
+				break;
+			}
+
+			deflated = Arrays.copyOf(deflated, 2 * deflated.length);
+		}
+
+		ByteBuffer compressedFrame = ByteBuffer.allocate(1 + 4 + deflatedLen);
+		compressedFrame.put(COMPRESSED_FRAME_MARKER);
+		compressedFrame.putInt(deflatedLen);
+		compressedFrame.put(deflated, 0, deflatedLen);
+		compressedFrame.flip();
+
+		++framesCompressed;
+		uncompressedBytes += frame.remaining();
+		compressedBytes += compressedFrame.remaining();
+		compressNanos += System.nanoTime() - startTime;
+
+		if(framesCompressed == EVALUATION_FRAMES && !isWorthIt()) {
+			System.out.println("Compression does not pay off, turning it off: " + this);
+			disable();
+		}
+
+		return compressedFrame;
+	}
+
+	private boolean isWorthIt() {
+		long savedBytes = uncompressedBytes - compressedBytes;
+		// Round up to at least a millisecond, so very fast compression never divides by zero
+		long compressMillis = Math.max(1, compressNanos / 1_000_000);
+
+		return savedBytes / compressMillis >= MIN_BYTES_SAVED_PER_MS;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Sends frames uncompressed from now on and releases the native memory of the deflater.
+	 */
+	public void disable() {
+		if(enabled) {
+			enabled = false;
+			deflater.end();
+			deflated = null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "compressed " + uncompressedBytes + " to " + compressedBytes + " bytes in " +
+				(compressNanos / 1_000_000) + "ms over " + framesCompressed + " frames";
+	}
+}
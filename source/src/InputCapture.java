@@ -0,0 +1,217 @@
+import java.awt.AWTEvent;
+import java.awt.Component;
+import java.awt.Point;
+import java.awt.event.AWTEventListener;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseEvent;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * Records keyboard and mouse input on the event dispatch thread, so that another thread can sample it without
+ * locks or allocation.
+ *
+ * Inputs currently held down are kept in a bitmask, and every press and release is also appended with a
+ * timestamp to a ring buffer. A thread sampling at a fixed rate thus sees the held inputs as of the time it
+ * samples, and, by draining the events, also presses that were released again before it got to sample. Only
+ * a single thread may drain events. If it does not keep up, the newest events are dropped, the bitmask stays
+ * correct regardless.
+ */
+public class InputCapture implements AWTEventListener {
+	public static final int UP = 1;
+	public static final int LEFT = 1 << 1;
+	public static final int DOWN = 1 << 2;
+	public static final int RIGHT = 1 << 3;
+	/** Usually the left mouse button */
+	public static final int PRIMARY = 1 << 4;
+	/** Any mouse button other than the primary one */
+	public static final int SECONDARY = 1 << 5;
+
+	/** Set in event codes of presses, not set for releases */
+	private static final int PRESS_FLAG = 1 << 31;
+
+	/** Power of two, way more than happen between two samples */
+	private static final int EVENT_CAPACITY = 256;
+
+	/** Window to report the mouse position in */
+	private final Component component;
+
+	private final AtomicInteger held = new AtomicInteger();
+	/** Mouse position in the component, x in the upper and y in the lower 32 bits */
+	private final AtomicLong mousePosition = new AtomicLong();
+
+	private final int[] eventCodes = new int[EVENT_CAPACITY];
+	private final long[] eventTimes = new long[EVENT_CAPACITY];
+	/** Count of events ever appended, only changed by the event dispatch thread */
+	private final AtomicLong eventsWritten = new AtomicLong();
+	/** Count of events ever drained, only changed by the draining thread */
+	private final AtomicLong eventsRead = new AtomicLong();
+
+	// Event drained last, only used by the draining thread
+	private int eventCode;
+	private long eventTime;
+
+	/**
+	 * @param component mouse positions are reported relative to this component
+	 */
+	public InputCapture(Component component) {
+		this.component = component;
+	}
+
+	/**
+	 * @return inputs currently held down, combined with bitwise or
+	 */
+	public int getHeld() {
+		return held.get();
+	}
+
+	/**
+	 * @return x coordinate of the mouse in the component as of the last mouse event
+	 */
+	public int getMouseX() {
+		return (int) (mousePosition.get() >> 32);
+	}
+
+	/**
+	 * @return y coordinate of the mouse in the component as of the last mouse event
+	 */
+	public int getMouseY() {
+		return (int) mousePosition.get();
+	}
+
+	/**
+	 * Takes the oldest event that was not drained yet, which can then be inspected with {@link #getEventInput()},
+	 * {@link #isEventPress()} and {@link #getEventTime()}. Must only be called by a single thread.
+	 *
+	 * @return true if there was an event, false if all events are drained
+	 */
+	public boolean nextEvent() {
+		long read = eventsRead.get();
+		if(read == eventsWritten.get()) {
+			return false;
+		}
+
+		int idx = (int) (read & (EVENT_CAPACITY - 1));
+		eventCode = eventCodes[idx];
+		eventTime = eventTimes[idx];
+
+		// Slot may be written again from now on
+		eventsRead.lazySet(read + 1);
+		return true;
+	}
+
+	/**
+	 * @return one of the input constants, like {@link #UP}, for the event drained last
+	 */
+	public int getEventInput() {
+		return eventCode & ~PRESS_FLAG;
+	}
+
+	/**
+	 * @return true if the input of the event drained last was pressed, false if released
+	 */
+	public boolean isEventPress() {
+		return (eventCode & PRESS_FLAG) != 0;
+	}
+
+	/**
+	 * @return time of the event drained last, comparable to {@link System#nanoTime()}
+	 */
+	public long getEventTime() {
+		return eventTime;
+	}
+
+	@Override
+	public void eventDispatched(AWTEvent event) {
+		if(event instanceof KeyEvent) {
+			KeyEvent keyEvent = (KeyEvent) event;
+			int input = toInput(keyEvent);
+
+			if(input != 0 && keyEvent.getID() == KeyEvent.KEY_PRESSED) {
+				press(input);
+			} else if(input != 0 && keyEvent.getID() == KeyEvent.KEY_RELEASED) {
+				release(input);
+			}
+
+			keyEvent.consume();
+		} else if(event instanceof MouseEvent) {
+			MouseEvent mouseEvent = (MouseEvent) event;
+			locate(mouseEvent);
+
+			int input = (mouseEvent.getButton() == MouseEvent.BUTTON1) ? PRIMARY : SECONDARY;
+
+			if(mouseEvent.getID() == MouseEvent.MOUSE_PRESSED) {
+				press(input);
+			} else if(mouseEvent.getID() == MouseEvent.MOUSE_RELEASED) {
+				release(input);
+			}
+		}
+	}
+
+	private static int toInput(KeyEvent event) {
+		switch (event.getKeyCode()) {
+		case KeyEvent.VK_UP: return UP;
+		case KeyEvent.VK_LEFT: return LEFT;
+		case KeyEvent.VK_DOWN: return DOWN;
+		case KeyEvent.VK_RIGHT: return RIGHT;
+		case KeyEvent.VK_W: return UP;
+		case KeyEvent.VK_A: return LEFT;
+		case KeyEvent.VK_S: return DOWN;
+		case KeyEvent.VK_D: return RIGHT;
+		default: return 0;
+		}
+	}
+
+	private void locate(MouseEvent event) {
+		int x = event.getX();
+		int y = event.getY();
+
+		if(event.getComponent() != component) {
+			Point converted = SwingUtilities.convertPoint(event.getComponent(), x, y, component);
+			x = converted.x;
+			y = converted.y;
+		}
+
+		mousePosition.set(((long) x << 32) | (y & 0xFFFFFFFFL));
+	}
+
+	private void press(int input) {
+		int old;
+		do {
+			old = held.get();
+		} while(!held.compareAndSet(old, old | input));
+
+		// Keys repeat while held, only record the first press
+		if((old & input) == 0) {
+			append(input | PRESS_FLAG);
+		}
+	}
+
+	private void release(int input) {
+		int old;
+		do {
+			old = held.get();
+		} while(!held.compareAndSet(old, old & ~input));
+
+		if((old & input) != 0) {
+			append(input);
+		}
+	}
+
+	private void append(int code) {
+		long written = eventsWritten.get();
+		if(written - eventsRead.get() == EVENT_CAPACITY) {
+			// Nobody drains, the held inputs are still right
+			return;
+		}
+
+		int idx = (int) (written & (EVENT_CAPACITY - 1));
+		eventCodes[idx] = code;
+		eventTimes[idx] = System.nanoTime();
+
+		// Publishes the slot to the draining thread
+		eventsWritten.lazySet(written + 1);
+	}
+}
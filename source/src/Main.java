@@ -16,47 +16,103 @@ public class Main {
 	public static final InetSocketAddress DISCOVERY_MULTICAST_GROUP = new InetSocketAddress("239.255.10.200", 50160);
 	public static final int DISCOERY_TIMEOUT_MS = 1000;
 	
+	/** Argument to run a dedicated server without window, which never loads AWT or textures */
+	public static final String DEDICATED_SERVER_ARG = "--server";
+	
+	/** Argument to measure rendering without a window instead of playing, see {@link RenderBenchmark} */
+	public static final String BENCHMARK_ARG = "--benchmark";
+	
 	/**
 	 * If no arguments, start server and connect to local server.
 	 * 
-	 * If one argument, try to parse it as server IP.
+	 * If one argument, try to parse it as server IP, or start a dedicated server if it is {@value #DEDICATED_SERVER_ARG},
+	 * or run the render benchmark if it is {@value #BENCHMARK_ARG}.
 	 * 
 	 * @param args
 	 */
 	public static void main(String[] args) {
 		System.out.println("deuterium0.0.1 --- " + Arrays.toString(args));
+		
+		if(args.length == 1 && args[0].equals(DEDICATED_SERVER_ARG)) {
+			runDedicatedServer();
+			return;
+		}
+		
+		if(args.length == 1 && args[0].equals(BENCHMARK_ARG)) {
+			RenderBenchmark.run();
+			return;
+		}
 
-		String serverUrl;
+		ClientChannel channel = new ClientChannel();
+		
+		// Start or find the server in the background, the window can show up in the meantime
+		Thread connectThread = new Thread(() -> connect(args, channel), "connect");
+		connectThread.setDaemon(true);
+		connectThread.start();
+		
+		Shell.run(channel);
+	}
+	
+	/**
+	 * Connects the channel either to the server given in the arguments, to a server in the local network or,
+	 * if there is none, to a new server in this process.
+	 * 
+	 * Without arguments, the server in this process starts right away, so the game is playable while discovery
+	 * is still listening. If a server in the local network answers, the local one is stopped and the channel
+	 * moves over to the discovered server.
+	 */
+	private static void connect(String[] args, ClientChannel channel) {
+		if(args.length != 0) {
+			// If argument was given, assume it is the hostname of the server
+			new Thread(new Client(args[0], channel), "client").start();
+			return;
+		}
 		
-		if(args.length == 0) {
-			// No arguments, try to find server in local network
-			serverUrl = discoverServer();
+		Server localServer = new Server();
+		// Server runs in this process, hand over messages directly instead of using a socket
+		localServer.connectLocal(channel);
+		Thread serverThread = new Thread(localServer, "server");
+		serverThread.start();
+		
+		// Only announce the local server after discovery, so discovery does not find it
+		String serverUrl = discoverServer();
+		
+		if(serverUrl == null) {
+			System.out.println("No server discovered in local network, keeping the server on this host");
 			
-			if(serverUrl == null) {
-				// No server was found, start one on this host
-				System.out.println("No server discovered in local network. Starting server on this host...");
+			localServer.ready().whenComplete((result, failure) -> {
+				if(failure != null) {
+					System.err.println("Could not start server on this host: " + failure);
+					System.exit(1);
+				}
 				
-				Server server = new Server();
-				new Thread(server).start();
 				makeLocalServerDiscoverable();
-				
-				// Give the server some time to initialize, so the connection won't be denied if the client thread starts before the server
-				// This should be properly synchronized instead of just waiting
-				try {
-					Thread.sleep(1000);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
-			}
-		} else {
-			// If argument was given, assume it is the hostname of the server
-			serverUrl = args[0];
+			});
+			return;
 		}
 		
+		localServer.terminate();
+		try {
+			// The channel only takes one thread sending from the server side at a time
+			serverThread.join();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			return;
+		}
+		
+		new Thread(new Client(serverUrl, channel), "client").start();
+	}
+
+	/**
+	 * Runs only the server on the calling thread, announcing it in the local network.
+	 */
+	private static void runDedicatedServer() {
+		System.out.println("Starting dedicated server...");
 		
-		Client client = new Client(serverUrl);
-		new Thread(client).start();
-		Shell.run(client.receivedFromServerQueue, client.willSendToServerQueue);
+		Server server = new Server();
+		// Only announce the server once clients can actually connect
+		server.ready().thenRun(Main::makeLocalServerDiscoverable);
+		server.run();
 	}
 
 	private static String discoverServer() {
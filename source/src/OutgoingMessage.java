@@ -0,0 +1,31 @@
+import java.nio.ByteBuffer;
+
+/**
+ * A message the simulation hands over to the I/O side.
+ * 
+ * It is serialized lazily by the first thread that needs the plain encoding and at most once,
+ * no matter how many clients receive it.
+ */
+public class OutgoingMessage {
+	public final UniversalDTO dto;
+	/** True for world state, which clients may skip or receive packed, false for messages that must arrive as is */
+	public final boolean snapshot;
+	
+	private ByteBuffer encoded;
+	
+	public OutgoingMessage(UniversalDTO dto, boolean snapshot) {
+		this.dto = dto;
+		this.snapshot = snapshot;
+	}
+	
+	/**
+	 * @return a new buffer over the shared serialized DTO, its backing array must not be modified
+	 */
+	public synchronized ByteBuffer getEncoded() {
+		if(encoded == null) {
+			encoded = dto.asBuffer();
+		}
+		
+		return encoded.duplicate();
+	}
+}
@@ -0,0 +1,135 @@
+/**
+ * Pool of short lived particles that drift and fade out over their lifetime.
+ *
+ * All particles live equally long, so spawning in a ring buffer keeps them ordered by age: the live particles
+ * are a contiguous range from the oldest to the newest, expiring only ever removes the oldest and iterating
+ * never visits dead slots. If the pool is full, spawning replaces the oldest particle. Positions are not
+ * integrated every frame but derived from spawn position, velocity and age when read, so updating only has to
+ * look at particles that expire.
+ *
+ * Properties are stored as one array per property. Not thread safe, only use from the rendering thread.
+ */
+public class ParticleSystem {
+	/** Clock time after which the clock and all spawn times are moved back to keep them small */
+	private static final float CLOCK_RESET_TIME = 60.0f;
+
+	private final int mask;
+	private final float lifetime;
+
+	private final float[] spawnX;
+	private final float[] spawnY;
+	private final float[] velocityX;
+	private final float[] velocityY;
+	private final float[] sizes;
+	private final float[] spawnTimes;
+
+	/** Slot of the oldest live particle */
+	private int oldest;
+	private int count;
+
+	/** Seconds on a clock that is moved back now and then, particles remember this as their spawn time */
+	private float time;
+
+	/** State of the xorshift random number generator, never zero */
+	private int randomState = 0x2545F491;
+
+	/**
+	 * @param capacity maximum amount of live particles, rounded up to a power of two
+	 * @param lifetime seconds from spawning until a particle is fully faded out
+	 */
+	public ParticleSystem(int capacity, float lifetime) {
+		int slots = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+
+		this.mask = slots - 1;
+		this.lifetime = lifetime;
+
+		spawnX = new float[slots];
+		spawnY = new float[slots];
+		velocityX = new float[slots];
+		velocityY = new float[slots];
+		sizes = new float[slots];
+		spawnTimes = new float[slots];
+	}
+
+	/**
+	 * Spawns a particle, replacing the oldest one if the pool is full.
+	 */
+	public void spawn(float x, float y, float velX, float velY, float size) {
+		if(count == mask + 1) {
+			oldest = (oldest + 1) & mask;
+			--count;
+		}
+
+		int slot = (oldest + count) & mask;
+		spawnX[slot] = x;
+		spawnY[slot] = y;
+		velocityX[slot] = velX;
+		velocityY[slot] = velY;
+		sizes[slot] = size;
+		spawnTimes[slot] = time;
+		++count;
+	}
+
+	/**
+	 * Ages all particles and removes the ones that outlived their lifetime.
+	 *
+	 * @param dt seconds since the last update
+	 */
+	public void update(float dt) {
+		time += dt;
+
+		while(count > 0 && (time - spawnTimes[oldest]) >= lifetime) {
+			oldest = (oldest + 1) & mask;
+			--count;
+		}
+
+		if(count == 0 || time >= CLOCK_RESET_TIME) {
+			// Keep the clock small so ages stay precise in long sessions, only differences to spawn times matter
+			for(int i = 0; i < count; ++i) {
+				spawnTimes[(oldest + i) & mask] -= time;
+			}
+			time = 0;
+		}
+	}
+
+	/**
+	 * @return number of live particles, valid indexes for the getters are 0 up to this exclusive, oldest first
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	public float getX(int idx) {
+		int slot = (oldest + idx) & mask;
+		return spawnX[slot] + velocityX[slot] * (time - spawnTimes[slot]);
+	}
+
+	public float getY(int idx) {
+		int slot = (oldest + idx) & mask;
+		return spawnY[slot] + velocityY[slot] * (time - spawnTimes[slot]);
+	}
+
+	public float getSize(int idx) {
+		return sizes[(oldest + idx) & mask];
+	}
+
+	/**
+	 * @return 1 for a fresh particle down to 0 when it expires, never increases with the index
+	 */
+	public float getOpacity(int idx) {
+		return 1.0f - (time - spawnTimes[(oldest + idx) & mask]) / lifetime;
+	}
+
+	/**
+	 * Cheap random number generator for visual variation, not suitable for anything else.
+	 *
+	 * @return random number between -1 and 1
+	 */
+	public float nextRandom() {
+		randomState ^= randomState << 13;
+		randomState ^= randomState >>> 17;
+		randomState ^= randomState << 5;
+
+		return randomState * (1.0f / Integer.MAX_VALUE);
+	}
+}
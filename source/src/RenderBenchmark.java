@@ -0,0 +1,235 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures how long the client takes to draw frames, without a display, so render regressions can be tracked
+ * on any machine.
+ * 
+ * Frames of a synthetic world are drawn into an image in memory with the same renderer and settings the window
+ * uses. The world has the given number of players, which leave particle trails, and of other entities, which
+ * are mostly stars with some traps and bullets in between. Everything moves each frame and scores change every
+ * few seconds, so culling, rotated sprites and HUD updates are all exercised. Changing the world is not measured.
+ * 
+ * Configured with system properties, all optional:
+ * <ul>
+ * <li><code>deuterium.benchmark.players</code> number of players, the first one is the local player</li>
+ * <li><code>deuterium.benchmark.entities</code> number of entities other than players</li>
+ * <li><code>deuterium.benchmark.particles</code> maximum number of trail particles alive at once</li>
+ * <li><code>deuterium.benchmark.frames</code> number of measured frames</li>
+ * <li><code>deuterium.benchmark.warmup</code> number of frames drawn before measuring, to let the JIT compile</li>
+ * </ul>
+ */
+public class RenderBenchmark {
+	private static final int DEFAULT_PLAYERS = 8;
+	private static final int DEFAULT_ENTITIES = 200;
+	private static final int DEFAULT_PARTICLES = 4096;
+	private static final int DEFAULT_FRAMES = 2000;
+	private static final int DEFAULT_WARMUP = 500;
+	
+	/** Simulated time between two frames */
+	private static final float FRAME_DT = 1.0f / 60.0f;
+	/** Frames between two score changes */
+	private static final int SCORE_CHANGE_INTERVAL = 120;
+	/** Longest wait for the textures, afterwards placeholders are measured instead */
+	private static final long TEXTURE_TIMEOUT_NANOS = 10_000_000_000L;
+	
+	private static final Color BACKGROUND_COLOR = new Color(18.0f/255.0f, 36.0f/255.0f, 64.0f/255.0f);
+	
+	private final int playerCount;
+	private final int entityCount;
+	private final Random random = new Random(42);
+	
+	private final ClientWorld world = new ClientWorld();
+	/** Full snapshot of the synthetic world, changed in place and handed to the world every frame */
+	private final UniversalDTO snapshot;
+	private final float[] snapshotData;
+	private final int[] scores;
+	
+	/**
+	 * Runs the benchmark on the calling thread and prints the results. Must be called before anything else
+	 * uses AWT, since AWT is switched to headless mode.
+	 */
+	public static void run() {
+		System.setProperty("java.awt.headless", "true");
+		
+		int players = Integer.getInteger("deuterium.benchmark.players", DEFAULT_PLAYERS);
+		int entities = Integer.getInteger("deuterium.benchmark.entities", DEFAULT_ENTITIES);
+		int particles = Integer.getInteger("deuterium.benchmark.particles", DEFAULT_PARTICLES);
+		int frames = Integer.getInteger("deuterium.benchmark.frames", DEFAULT_FRAMES);
+		int warmup = Integer.getInteger("deuterium.benchmark.warmup", DEFAULT_WARMUP);
+		
+		if(players < 0 || entities < 0 || players + entities > World.ENTITY_COUNT_MAX) {
+			throw new IllegalArgumentException("Players and entities must add up to at most " + World.ENTITY_COUNT_MAX);
+		}
+		if(particles < 1 || frames < 1 || warmup < 0) {
+			throw new IllegalArgumentException("Need at least one particle and one frame");
+		}
+		
+		new RenderBenchmark(players, entities).measure(new WorldRenderer(particles), frames, warmup);
+	}
+	
+	private RenderBenchmark(int playerCount, int entityCount) {
+		this.playerCount = playerCount;
+		this.entityCount = entityCount;
+		this.scores = new int[playerCount];
+		
+		// Same layout as World#getFullStateUpdateDTO, without any players in the header
+		snapshotData = new float[2 + World.ENTITY_SIZE * World.ENTITY_COUNT_MAX];
+		snapshotData[1] = World.GAME_DURATION;
+		snapshot = new UniversalDTO(-1, "", "update-full", snapshotData);
+		
+		for(int id = 0; id < playerCount; ++id) {
+			spawn(id, 70.0f, 0.0f, World.KIND_VAL_PLAYER, (id % 2) + 1);
+			world.handleDTO(new UniversalDTO(-1, "Player " + id, "roster-join", new float[] { id, 0 }));
+		}
+		
+		for(int id = playerCount; id < playerCount + entityCount; ++id) {
+			int kind = id % 8;
+			if(kind == 0) {
+				spawn(id, 80.0f, 150.0f, World.KIND_VAL_TRAP, 3);
+			} else if(kind == 1) {
+				spawn(id, 10.0f, 300.0f, World.KIND_VAL_BULLET, 0);
+			} else {
+				spawn(id, 2.0f + 8.0f * random.nextFloat(), 0.0f, World.KIND_VAL_STAR, 0);
+			}
+		}
+		
+		world.localPlayerID = (playerCount > 0) ? 0 : -1;
+		world.handleDTO(snapshot);
+	}
+	
+	private void spawn(int id, float diameter, float velocityMagnitude, float kind, int texIdx) {
+		int offset = 2 + id * World.ENTITY_SIZE;
+		double direction = 2 * Math.PI * random.nextDouble();
+		
+		snapshotData[offset + World.POSITION_X] = World.MIN_POSITION_X + random.nextFloat() * (World.MAX_POSITION_X - World.MIN_POSITION_X);
+		snapshotData[offset + World.POSITION_Y] = World.MIN_POSITION_Y + random.nextFloat() * (World.MAX_POSITION_Y - World.MIN_POSITION_Y);
+		snapshotData[offset + World.VELOCITY_X] = (float) (Math.cos(direction) * velocityMagnitude);
+		snapshotData[offset + World.VELOCITY_Y] = (float) (Math.sin(direction) * velocityMagnitude);
+		snapshotData[offset + World.COLOR_R] = random.nextFloat();
+		snapshotData[offset + World.COLOR_G] = random.nextFloat();
+		snapshotData[offset + World.COLOR_B] = random.nextFloat();
+		snapshotData[offset + World.DIMENSION_X] = diameter;
+		snapshotData[offset + World.DIMENSION_Y] = diameter;
+		snapshotData[offset + World.IN_USE] = 1.0f;
+		snapshotData[offset + World.COLLISION_ENABLED] = 1.0f;
+		snapshotData[offset + World.KIND] = kind;
+		snapshotData[offset + World.TEX_INDEX] = texIdx;
+	}
+	
+	private void measure(WorldRenderer renderer, int frames, int warmup) {
+		long textureDeadline = System.nanoTime() + TEXTURE_TIMEOUT_NANOS;
+		while(!renderer.isTexturesReady() && System.nanoTime() < textureDeadline) {
+			LockSupport.parkNanos(10_000_000L);
+		}
+		if(!renderer.isTexturesReady()) {
+			System.err.println("Textures did not load in time, measuring placeholders instead");
+		}
+		
+		BufferedImage image = new BufferedImage(Shell.WIDTH, Shell.HEIGHT, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = image.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		com.sun.management.ThreadMXBean allocations = (threads instanceof com.sun.management.ThreadMXBean) ? (com.sun.management.ThreadMXBean) threads : null;
+		long threadID = Thread.currentThread().getId();
+		
+		for(int frame = 0; frame < warmup; ++frame) {
+			advance(frame);
+			drawFrame(renderer, g);
+		}
+		
+		long particleNanos = renderer.getParticleNanos();
+		long entityNanos = renderer.getEntityNanos();
+		long hudNanos = renderer.getHUDNanos();
+		long frameNanos = 0;
+		long allocatedBytes = 0;
+		long particleSum = 0;
+		
+		for(int frame = warmup; frame < warmup + frames; ++frame) {
+			advance(frame);
+			
+			long allocatedBefore = (allocations == null) ? 0 : allocations.getThreadAllocatedBytes(threadID);
+			long start = System.nanoTime();
+			
+			drawFrame(renderer, g);
+			
+			frameNanos += System.nanoTime() - start;
+			allocatedBytes += (allocations == null) ? 0 : allocations.getThreadAllocatedBytes(threadID) - allocatedBefore;
+			particleSum += renderer.getParticleCount();
+		}
+		
+		particleNanos = renderer.getParticleNanos() - particleNanos;
+		entityNanos = renderer.getEntityNanos() - entityNanos;
+		hudNanos = renderer.getHUDNanos() - hudNanos;
+		
+		g.dispose();
+		
+		System.out.println("Rendered " + frames + " frames of " + playerCount + " players, " + entityCount + " entities and " +
+		                   (particleSum / frames) + " particles on average in " + (frameNanos / 1_000_000) + " ms");
+		System.out.println(String.format("fps: %.1f", frames / (frameNanos / 1_000_000_000.0)));
+		System.out.println(String.format("ms per frame: %.3f total, %.3f particles, %.3f entities, %.3f HUD",
+		                                 frameNanos / 1_000_000.0 / frames, particleNanos / 1_000_000.0 / frames,
+		                                 entityNanos / 1_000_000.0 / frames, hudNanos / 1_000_000.0 / frames));
+		if(allocations != null) {
+			System.out.println("bytes allocated per frame: " + (allocatedBytes / frames));
+		} else {
+			System.out.println("bytes allocated per frame: unknown, not supported by this JVM");
+		}
+	}
+	
+	/**
+	 * Moves everything in the synthetic world by one frame, bouncing off the edges of the world, and hands it
+	 * to the client world like a snapshot from the server.
+	 */
+	private void advance(int frame) {
+		for(int id = 0; id < playerCount + entityCount; ++id) {
+			int offset = 2 + id * World.ENTITY_SIZE;
+			
+			if(id < playerCount) {
+				// Players steer in circles, so their trails curve
+				double direction = 0.5 * id + frame * FRAME_DT;
+				snapshotData[offset + World.VELOCITY_X] = (float) (Math.cos(direction) * Server.PLAYER_VELOCITY_MAGNITUDE);
+				snapshotData[offset + World.VELOCITY_Y] = (float) (Math.sin(direction) * Server.PLAYER_VELOCITY_MAGNITUDE);
+			}
+			
+			bounce(offset + World.POSITION_X, offset + World.VELOCITY_X, World.MIN_POSITION_X, World.MAX_POSITION_X);
+			bounce(offset + World.POSITION_Y, offset + World.VELOCITY_Y, World.MIN_POSITION_Y, World.MAX_POSITION_Y);
+		}
+		
+		// Count down like a game, start over before it ends so the game screen stays up
+		snapshotData[1] = World.GAME_DURATION - (frame * FRAME_DT) % (World.GAME_DURATION - 1.0f);
+		world.handleDTO(snapshot);
+		
+		if(playerCount > 0 && frame % SCORE_CHANGE_INTERVAL == 0) {
+			int id = random.nextInt(playerCount);
+			scores[id] += 1 + random.nextInt(10);
+			world.handleDTO(new UniversalDTO(-1, "", "roster-score", new float[] { id, scores[id] }));
+		}
+	}
+	
+	private void bounce(int positionIdx, int velocityIdx, float min, float max) {
+		float position = snapshotData[positionIdx] + snapshotData[velocityIdx] * FRAME_DT;
+		
+		if(position < min || position > max) {
+			snapshotData[velocityIdx] = -snapshotData[velocityIdx];
+			position = Math.min(Math.max(position, min), max);
+		}
+		
+		snapshotData[positionIdx] = position;
+	}
+	
+	private void drawFrame(WorldRenderer renderer, Graphics2D g) {
+		g.setColor(BACKGROUND_COLOR);
+		g.fillRect(0, 0, Shell.WIDTH, Shell.HEIGHT);
+		
+		renderer.draw(world, FRAME_DT, g);
+	}
+}
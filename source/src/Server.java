@@ -2,23 +2,59 @@
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.InvalidObjectException;
 import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
-import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.Map;
+import java.util.List;
+import java.util.Queue;
 import java.util.Random;
-import java.util.Set;
-import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 /**
+ * Runs the simulation on the thread calling {@link #run()} and all socket I/O on a separate network thread.
+ * 
+ * The network thread only decodes client messages into {@link #inbound}, which the simulation drains
+ * at the start of each tick. In return, the simulation publishes encoded snapshots and join acknowledgements
+ * that the network thread writes out, so neither a burst of input nor a long tick can stall the other.
+ * 
+ * By default, a single selector thread serves all clients. Alternatively, with the system property
+ * <code>deuterium.server.io=threads</code>, every client gets a reading and a writing thread doing blocking
+ * I/O with the same framing. These are virtual threads when the JDK supports them.
+ * 
+ * A client in the same process can skip sockets and serialization altogether by joining with
+ * {@link #connectLocal(ClientChannel)}.
+ * 
+ * Remote clients are offered compression in the join acknowledgement. Those that ask for it get their
+ * frames compressed by a {@link FrameCompressor} on the I/O side, unless disabled with
+ * <code>deuterium.server.compression=false</code>.
+ * 
+ * The simulation always publishes every snapshot, but each remote session only sends as many as its
+ * connection can take, see {@link Session#acceptSnapshot(boolean, float)}. Clients with a byte budget per snapshot,
+ * configured with <code>deuterium.server.snapshotBudget</code> or because they are congested, get only the
+ * most relevant entities, packed by a {@link SnapshotPacker}.
+ * 
+ * Messages from clients are checked on the I/O side before the simulation sees them. Oversized messages
+ * close the connection, messages beyond the rate limits of the session are dropped before being decoded
+ * or even allocated, and decoded messages with unknown events or out of range values are dropped, too.
+ * 
+ * Snapshots only carry entity state. Players joining and leaving and changing scores are sent as separate
+ * events that are never skipped or packed and always arrive in order, so clients can keep their roster
+ * up to date incrementally.
  * 
  * @author PhilippStadler
  * @see https://examples.javacodegeeks.com/core-java/nio/java-nio-socket-example/
@@ -30,28 +66,163 @@ public class Server implements Runnable {
 //	private static final int PLAYER_PARTICLE_COUNT = 100;
 
 	private static final int BULLET_VELOCITY_MAGNITUDE = 3 * PLAYER_VELOCITY_MAGNITUDE;
+	
+	/** Seconds a player has to wait between two shots */
+	public static final float SHOOT_COOLDOWN = 1.0f;
 
 	public static final InetSocketAddress SERVER_ADDR = new InetSocketAddress("0.0.0.0", 40000);
 
 	/**
-	 * Indicates how often the server should update world state and send it to clients.
+	 * Indicates how often the server should update world state and send it to clients by default,
+	 * see {@link #setTickRate(float)} and {@link #setSendRate(float)}.
 	 */
 	public static final float SERVER_UPDATE_INTERVAL = 0.03f;
+	
+	private final boolean threadPerConnection;
+	private final boolean compressionOffered = !"false".equals(System.getProperty("deuterium.server.compression"));
+	/** Maximum bytes of a snapshot for every remote client, 0 for full snapshots to clients that are not congested */
+	private final int snapshotByteBudget = Integer.getInteger("deuterium.server.snapshotBudget", 0);
+
+	/** Nanoseconds between two ticks of the simulation */
+	private volatile long tickIntervalNanos;
+	/** Nanoseconds between two published snapshots */
+	private volatile long sendIntervalNanos;
 
 	private volatile boolean run = true;
+	/** Completed once clients can connect */
+	private final CompletableFuture<Void> ready = new CompletableFuture<>();
 
 	private Selector selector;
-	private Set<SocketChannel> clientChannels = new HashSet<>();
-	private Map<SocketChannel, Integer> clientIdentities = new WeakHashMap<>();
-//	private Map<SocketChannel, int[]> clientParticles = new WeakHashMap<>();
-	private Map<SocketChannel, ByteBuffer> fromClientUpdateBufs = new WeakHashMap<>();
-	private Map<SocketChannel, ByteBuffer> fromClientUpdateBufLens = new WeakHashMap<>();
-	private Map<SocketChannel, ByteBuffer> toClientUpdateBufs = new WeakHashMap<>();
+	
+	// Owned by the network thread
+	/** Sessions that should receive snapshots */
+	private List<Session> joinedSessions = new ArrayList<>();
+	/** Shared by all reads since there is only one network thread */
+	private final ByteBuffer readBuf = ByteBuffer.allocate(4096);
+	
+	// Handoff between network and simulation thread
+	/** Connects, disconnects and decoded messages of clients, in order of arrival */
+	private final Queue<ClientEvent> inbound = new ConcurrentLinkedQueue<>();
+	/** Messages for single clients, written before the next snapshot */
+	private final Queue<ClientEvent> outbound = new ConcurrentLinkedQueue<>();
+	/** Newest world state not yet picked up by the network thread, older ones are skipped */
+	private final AtomicReference<OutgoingMessage> publishedSnapshot = new AtomicReference<>();
+	
+	// Owned by the simulation thread
+	/** Sessions that have a player */
+	private List<Session> playerSessions = new ArrayList<>();
+	/** Amount of player sessions that need snapshots encoded, that is all except local ones */
+	private int remoteSessionCount;
 	private World world;
 	private int nextPlayerTexId = 0;
+	
+	/**
+	 * Something that happened on a client connection, passed between network and simulation thread.
+	 */
+	private static final class ClientEvent {
+		static final int CONNECTED = 0;
+		static final int RECEIVED = 1;
+		static final int DISCONNECTED = 2;
+		static final int SEND = 3;
+		
+		final int type;
+		final Session session;
+		final UniversalDTO dto;
+		final OutgoingMessage message;
+		
+		ClientEvent(int type, Session session, UniversalDTO dto, OutgoingMessage message) {
+			this.type = type;
+			this.session = session;
+			this.dto = dto;
+			this.message = message;
+		}
+	}
+
+	public Server() {
+		this("threads".equals(System.getProperty("deuterium.server.io")));
+	}
+	
+	/**
+	 * @param threadPerConnection if true, serve each client with blocking I/O on its own threads, otherwise
+	 *                            serve all clients with a single selector thread
+	 */
+	public Server(boolean threadPerConnection) {
+		this.threadPerConnection = threadPerConnection;
+		
+		float defaultRate = 1.0f / SERVER_UPDATE_INTERVAL;
+		setTickRate(getRateProperty("deuterium.server.tickRate", defaultRate));
+		setSendRate(getRateProperty("deuterium.server.sendRate", defaultRate));
+	}
+	
+	private static float getRateProperty(String name, float defaultRate) {
+		String rate = System.getProperty(name);
+		
+		try {
+			return (rate == null) ? defaultRate : Float.parseFloat(rate);
+		} catch (NumberFormatException e) {
+			System.err.println("Ignoring " + name + "=" + rate + ", not a number");
+			return defaultRate;
+		}
+	}
+	
+	/**
+	 * Sets how many times per second the simulation advances, may be called while the server runs.
+	 * Higher rates make collisions of fast entities more accurate, but cost CPU.
+	 * 
+	 * @param hz ticks per second, also settable with the system property <code>deuterium.server.tickRate</code>
+	 */
+	public void setTickRate(float hz) {
+		if(!(hz > 0)) {
+			throw new IllegalArgumentException("Tick rate must be positive, but was " + hz);
+		}
+		
+		tickIntervalNanos = (long) (1_000_000_000L / hz);
+	}
+	
+	/**
+	 * Sets how many times per second the latest world state is published to clients, may be called while the
+	 * server runs. Each client may still receive fewer snapshots if its connection cannot take them all.
+	 * Rates above the tick rate have no effect, since a snapshot is only published after a tick.
+	 * 
+	 * @param hz snapshots per second, also settable with the system property <code>deuterium.server.sendRate</code>
+	 */
+	public void setSendRate(float hz) {
+		if(!(hz > 0)) {
+			throw new IllegalArgumentException("Send rate must be positive, but was " + hz);
+		}
+		
+		sendIntervalNanos = (long) (1_000_000_000L / hz);
+	}
+
+	/**
+	 * Joins a client living in the same process without going through sockets or serialization.
+	 * 
+	 * Messages from the server, including snapshots, are handed to the client as is, so they must
+	 * not be modified by the client. Messages from the client are handled at the start of the next
+	 * tick. May be called before the server runs.
+	 * 
+	 * @param channel the server becomes its server side, the client must be its only client side
+	 */
+	public void connectLocal(ClientChannel channel) {
+		inbound.add(new ClientEvent(ClientEvent.CONNECTED, new Session(channel), null, null));
+	}
+
+	/**
+	 * Completes as soon as the server accepts connections, or exceptionally if it could not start,
+	 * so nobody has to guess how long startup takes.
+	 * 
+	 * @return future completed on the server thread, dependent actions should be quick
+	 */
+	public CompletableFuture<Void> ready() {
+		return ready;
+	}
 
 	public void terminate() {
 		run = false;
+		
+		if(selector != null) {
+			selector.wakeup();
+		}
 	}
 
 	@Override
@@ -59,99 +230,563 @@ public class Server implements Runnable {
 		try {
 			initWorld();
 
-			selector = Selector.open();
-
 			ServerSocketChannel acceptChannel = ServerSocketChannel.open();
-			acceptChannel.configureBlocking(false);
 			acceptChannel.socket().bind(SERVER_ADDR);
-			acceptChannel.register(selector, SelectionKey.OP_ACCEPT);
+			
+			Thread networkThread;
+			if(threadPerConnection) {
+				networkThread = new Thread(() -> runConnectionThreads(acceptChannel), "server-accept");
+			} else {
+				selector = Selector.open();
+				acceptChannel.configureBlocking(false);
+				acceptChannel.register(selector, SelectionKey.OP_ACCEPT);
+				
+				networkThread = new Thread(this::runNetwork, "server-network");
+			}
+			networkThread.setDaemon(true);
+			networkThread.start();
+			
+			System.out.println("Server listening on " + SERVER_ADDR);
+			ready.complete(null);
 
 			long lastFrameTime = System.nanoTime();
+			long nextSendTime = lastFrameTime;
+			boolean ticksSinceSend = false;
 			while(run) {
-				// TODO set timeout and do this to sync game loop
-				handleNetworkData();
-
 				long thisFrameTime = System.nanoTime();
-				float dt = (thisFrameTime - lastFrameTime) / 1_000_000_000.0f;
-				if(dt > SERVER_UPDATE_INTERVAL) {
+				long untilNextFrame = lastFrameTime + tickIntervalNanos - thisFrameTime;
+				long untilNextSend = ticksSinceSend ? nextSendTime - thisFrameTime : untilNextFrame;
+				
+				if(untilNextFrame > 0 && untilNextSend > 0) {
+					// Network thread does not need us in between ticks and sends, just wait
+					LockSupport.parkNanos(Math.min(untilNextFrame, untilNextSend));
+					continue;
+				}
+				
+				if(untilNextFrame <= 0) {
+					float dt = (thisFrameTime - lastFrameTime) / 1_000_000_000.0f;
+					
+					handleInbound();
+					
 					executeMechanics(dt);
-
-					broadcastWorldState();
-
+					
+					ticksSinceSend = true;
 					lastFrameTime = thisFrameTime;
 				}
+				
+				if(ticksSinceSend && nextSendTime - thisFrameTime <= 0) {
+					// Always the latest state, no matter how many ticks happened since the last send
+					broadcastWorldState();
+					
+					ticksSinceSend = false;
+					// Do not try to catch up on missed sends, the next state will be newer anyway
+					nextSendTime = Math.max(nextSendTime + sendIntervalNanos, thisFrameTime);
+				}
+			}
+			
+			// Clients in this process may move on to another server, tell them every player here is gone
+			for(Session session : playerSessions) {
+				if(session.isLocal()) {
+					for(Session player : playerSessions) {
+						send(session, World.getPlayerLeaveDTO(player.playerID));
+					}
+				}
 			}
 
+			acceptChannel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+			// Nothing happens if already completed
+			ready.completeExceptionally(e);
+		} catch (RuntimeException | Error e) {
+			// Whoever waits for the server must not wait forever
+			ready.completeExceptionally(e);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Consumes everything the network thread decoded since the last tick.
+	 */
+	private void handleInbound() {
+		ClientEvent evt;
+		while((evt = inbound.poll()) != null) {
+			if(evt.type == ClientEvent.CONNECTED) {
+				int playerID = createPlayer();
+				evt.session.playerID = playerID;
 
+				// Second value tells the client whether it may ask for compression
+				float compressionAvailable = (compressionOffered && !evt.session.isLocal()) ? 1.0f : 0.0f;
+				send(evt.session, new UniversalDTO(-1, "elohim", "join-acknowledge", new float[] { playerID, compressionAvailable }));
+				
+				// Everybody else only needs to hear about the new player, the new client needs the whole roster
+				sendToAll(world.getPlayerJoinDTO(playerID));
+				for(UniversalDTO rosterDTO : world.getRosterDTOs()) {
+					send(evt.session, rosterDTO);
+				}
+				
+				playerSessions.add(evt.session);
+				if(!evt.session.isLocal()) {
+					++remoteSessionCount;
+				}
+			} else if(evt.type == ClientEvent.RECEIVED) {
+				if(evt.session.playerID != -1) {
+					handleClientDTO(evt.session.playerID, evt.dto);
+				}
+			} else if(evt.type == ClientEvent.DISCONNECTED) {
+				killPlayer(evt.session);
+			}
+		}
+		
+		for(Session session : playerSessions) {
+			if(session.isLocal()) {
+				UniversalDTO dto;
+				while((dto = session.localChannel.pollToServer()) != null) {
+					++session.messagesReceived;
+					if(admit(session, dto)) {
+						handleClientDTO(session.playerID, dto);
+					} else {
+						++session.messagesDropped;
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Queues a message for a single client, it is written after the messages sent before and before any later snapshot.
+	 */
+	private void send(Session session, UniversalDTO dto) {
+		send(session, new OutgoingMessage(dto, false));
+	}
+	
+	/**
+	 * Queues a message for every client with a player, serializing it only once.
+	 */
+	private void sendToAll(UniversalDTO dto) {
+		OutgoingMessage message = new OutgoingMessage(dto, false);
+		
+		for(Session session : playerSessions) {
+			send(session, message);
+		}
+	}
+	
+	private void send(Session session, OutgoingMessage message) {
+		if(session.isLocal()) {
+			if(!session.localChannel.offerFromServer(message.dto)) {
+				System.err.println("Dropped " + message.dto.getEvent() + " to local client that does not keep up");
+			}
+		} else if(threadPerConnection) {
+			// Outbox is unbounded, cannot fail
+			session.outbox.offer(message);
+		} else {
+			outbound.add(new ClientEvent(ClientEvent.SEND, session, null, message));
+		}
+	}
+	
+	/**
+	 * Hands a snapshot to the I/O side, which sends it to every joined client that is not busy with
+	 * an older one. Local clients get the DTO itself, for remote clients the I/O side serializes it.
+	 */
+	private void publish(UniversalDTO snapshot) {
+		for(Session session : playerSessions) {
+			if(session.isLocal()) {
+				// Replaces a snapshot the client did not take yet, so it never takes room from events
+				session.localChannel.offerFromServer(snapshot);
+				++session.snapshotsSent;
+			}
+		}
+		
+		if(remoteSessionCount == 0) {
+			return;
+		}
+		
+		OutgoingMessage message = new OutgoingMessage(snapshot, true);
+		float sendInterval = sendIntervalNanos / 1_000_000_000.0f;
+		if(threadPerConnection) {
+			for(Session session : playerSessions) {
+				if(session.isLocal() || session.bytesSent == 0) {
+					// Like the selector, only start with snapshots once the join acknowledgement is out,
+					// messages waiting for a writer that just started are no sign of a slow link
+					continue;
+				}
+				
+				// Writer takes frames right away when idle, so anything left in the outbox means it is still busy
+				if(session.acceptSnapshot(!session.outbox.isEmpty(), sendInterval)) {
+					session.outbox.offer(message);
+				}
+			}
+		} else {
+			publishedSnapshot.set(message);
+			selector.wakeup();
+		}
+	}
+	
+	/**
+	 * Accepts clients in thread-per-connection mode and starts a reader and a writer for each.
+	 */
+	private void runConnectionThreads(ServerSocketChannel acceptChannel) {
+		ThreadFactory connectionThreads = createConnectionThreadFactory();
+		
+		try {
+			while(run) {
+				Session session = new Session(acceptChannel.accept());
+				session.snapshotByteBudget = snapshotByteBudget;
+				inbound.add(new ClientEvent(ClientEvent.CONNECTED, session, null, null));
+				
+				connectionThreads.newThread(() -> readConnection(session)).start();
+				connectionThreads.newThread(() -> writeConnection(session)).start();
+			}
+		} catch (IOException e) {
+			if(run) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Uses virtual threads if the JDK has them and platform daemon threads otherwise.
+	 * The project still compiles for Java 8, hence the reflection.
+	 */
+	private static ThreadFactory createConnectionThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException e) {
+			return runnable -> {
+				Thread thread = new Thread(runnable);
+				thread.setDaemon(true);
+				return thread;
+			};
+		}
+	}
+	
+	/**
+	 * Blocking reads of length-prefixed messages of one client in thread-per-connection mode.
+	 */
+	private void readConnection(Session session) {
+		// Not using the session buffers, the writer may release them any time on close
+		ByteBuffer lenBuf = ByteBuffer.allocate(4);
+		// Messages are small, so one buffer fits them all
+		ByteBuffer updateBuf = ByteBuffer.allocate(Session.MAX_CLIENT_MESSAGE_BYTES);
+		
+		try {
+			while(true) {
+				lenBuf.clear();
+				readFully(session.channel, lenBuf);
+				lenBuf.flip();
+				int len = checkMessageLength(lenBuf.getInt());
+				
+				updateBuf.clear();
+				updateBuf.limit(len);
+				readFully(session.channel, updateBuf);
+				session.bytesReceived += 4 + len;
+				
+				if(session.messageLimit.tryTake(System.nanoTime())) {
+					receive(session, decode(updateBuf.array(), len));
+				} else {
+					++session.messagesDropped;
+				}
+			}
+		} catch (IOException | ClassNotFoundException e) {
+			// Closed by the client, broken or misbehaving, either way the client is gone
+		} finally {
+			// Even if something unexpected ends this thread, the player must not stay behind in the world
+			disconnect(session);
+		}
+	}
+	
+	/**
+	 * @param len length prefix of a message from a client
+	 * @return the length, if it is valid
+	 * @throws IOException if no well-behaved client would send a message of that length
+	 */
+	private static int checkMessageLength(int len) throws IOException {
+		if(len <= 0 || len > Session.MAX_CLIENT_MESSAGE_BYTES) {
+			throw new IOException("Client sent message of invalid length " + len);
+		}
+		
+		return len;
+	}
+	
+	/**
+	 * Deserializes a message from a client, refusing anything that is not made of the parts of a DTO.
+	 */
+	private static UniversalDTO decode(byte[] buf, int len) throws IOException, ClassNotFoundException {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(buf, 0, len)) {
+			@Override
+			protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+				String name = desc.getName();
+				if(!name.equals(UniversalDTO.class.getName()) && !name.equals(float[].class.getName())) {
+					throw new InvalidClassException(name, "Not allowed in messages from clients");
+				}
+				
+				return super.resolveClass(desc);
+			}
+		};
+		
+		Object dto = in.readObject();
+		if(!(dto instanceof UniversalDTO)) {
+			// Strings and arrays pass the class check on their own
+			throw new InvalidObjectException("Client sent " + ((dto == null) ? "null" : dto.getClass().getName()) + " instead of a DTO");
+		}
+		
+		return (UniversalDTO) dto;
+	}
+	
+	private static void readFully(SocketChannel channel, ByteBuffer buf) throws IOException {
+		while(buf.remaining() > 0) {
+			if(channel.read(buf) == -1) {
+				throw new IOException("Connection closed by client");
+			}
+		}
+	}
+	
+	/**
+	 * Blocking writes to one client in thread-per-connection mode.
+	 */
+	private void writeConnection(Session session) {
+		try {
+			while(!session.isClosed()) {
+				// Wake up once in a while to notice if the reader closed the session
+				OutgoingMessage message = session.outbox.poll(1, TimeUnit.SECONDS);
+				
+				if(message != null) {
+					ByteBuffer buf = encodeFor(session, message);
+					long writeStartTime = System.nanoTime();
+					int frameBytes = buf.remaining();
+					boolean queuedBefore = !session.outbox.isEmpty();
+					int writes = 0;
+					
+					while(buf.remaining() > 0) {
+						session.bytesSent += session.channel.write(buf);
+						++writes;
+					}
+					
+					// Blocking writes hardly ever return early, but while one blocks for the link, new messages queue up
+					boolean waited = writes > 1 || (!queuedBefore && !session.outbox.isEmpty());
+					session.frameWritten(frameBytes, System.nanoTime() - writeStartTime, waited);
+				}
+			}
+		} catch (IOException | InterruptedException e) {
+			// Client is gone
+		}
+		
+		disconnect(session);
+		
+		if(session.compressor != null) {
+			// Only the writer uses it, so only the writer may free it
+			session.compressor.disable();
+		}
+	}
+	
+	/**
+	 * Serializes a message for one client, packing snapshots into the byte budget of the client if it has one
+	 * and compressing if the client asked for it. Called by the thread writing to the client.
+	 */
+	private ByteBuffer encodeFor(Session session, OutgoingMessage message) {
+		ByteBuffer frame;
+		int budget = message.snapshot ? session.getSnapshotByteBudget() : 0;
+		
+		if(budget > 0) {
+			frame = session.packer.pack(message.dto, session.playerID, budget).asBuffer();
+		} else {
+			frame = message.getEncoded();
+			
+			if(message.snapshot) {
+				session.packer.fullSnapshotSent(message.dto);
+			}
+		}
+		
+		if(session.compressor != null) {
+			ByteBuffer compressed = session.compressor.compress(frame);
+			if(compressed != null) {
+				frame = compressed;
+			}
+		}
+		
+		return frame;
+	}
+	
+	/**
+	 * Passes a decoded message on to the simulation, unless it concerns the connection only or is dropped.
+	 * Called from the thread reading from the client.
+	 */
+	private void receive(Session session, UniversalDTO dto) {
+		++session.messagesReceived;
+		
+		if(!admit(session, dto)) {
+			++session.messagesDropped;
+			return;
+		}
+		
+		if(dto.getEvent().equals("request-steer")) {
+			// Steering has its own limit, so a client steering at full rate still has messages left for shots
+			session.messageLimit.refund();
+		}
+		
+		if(dto.getEvent().equals("request-compression")) {
+			if(compressionOffered && session.compressor == null) {
+				session.compressor = new FrameCompressor();
+			}
+		} else {
+			inbound.add(new ClientEvent(ClientEvent.RECEIVED, session, dto, null));
+		}
+	}
+	
+	/**
+	 * Checks that a message from a client is something the simulation understands, that its values are in range
+	 * and that the client does not exceed the rate limit for the kind of message. Called from the thread reading
+	 * from the client, or the simulation thread for local clients.
+	 * 
+	 * @return true if the message may be handled
+	 */
+	private static boolean admit(Session session, UniversalDTO dto) {
+		String evt = dto.getEvent();
+		float[] data = dto.getData();
+		
+		if(evt == null || data == null) {
+			return false;
+		} else if(evt.equals("request-steer")) {
+			// Sequence number is optional
+			return data.length >= 2 && isDirection(data[0], data[1], 0.0f) && (data.length < 3 || Float.isFinite(data[2])) &&
+					session.steerLimit.tryTake(System.nanoTime());
+		} else if(evt.equals("request-shoot")) {
+			// Time of the shot is optional
+			return data.length >= 2 && isDirection(data[0], data[1], 0.99f) && (data.length < 3 || Float.isFinite(data[2])) &&
+					session.shootLimit.tryTake(System.nanoTime());
+		} else if(evt.equals("request-compression")) {
+			// Only has an effect once anyway
+			return true;
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * @return true if x and y are finite and the vector has a length between the minimum and one
+	 */
+	private static boolean isDirection(float x, float y, float minLength) {
+		if(!Float.isFinite(x) || !Float.isFinite(y)) {
+			return false;
+		}
+		
+		// Some slack for rounding
+		float squaredLength = x*x + y*y;
+		return squaredLength >= minLength * minLength && squaredLength <= 1.01f * 1.01f;
+	}
+	
+	private void runNetwork() {
+		try {
+			while(run) {
+				selector.select();
+				
+				handleOutbound();
+				
+				handleNetworkData();
+			}
+			
+			selector.close();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
+	
+	/**
+	 * Picks up what the simulation thread wants to send.
+	 */
+	private void handleOutbound() {
+		ClientEvent evt;
+		while((evt = outbound.poll()) != null) {
+			Session session = evt.session;
+			if(session.isClosed()) {
+				continue;
+			}
+			
+			if(!session.joined) {
+				// Only start broadcasting snapshots after the client knows its player ID, which is the first message
+				session.joined = true;
+				joinedSessions.add(session);
+			}
+			
+			// Encoded right away, so compressed frames are written in the order they were compressed
+			ByteBuffer buf = encodeFor(session, evt.message);
+			if(session.toClientUpdateBuf == null) {
+				queueWrite(session, buf);
+			} else {
+				session.pendingEvents.add(buf);
+			}
+		}
+		
+		OutgoingMessage snapshot = publishedSnapshot.getAndSet(null);
+		if(snapshot != null) {
+			broadcast(snapshot);
+		}
+	}
 
 	private void accept(SelectionKey key) throws IOException {
 		ServerSocketChannel acceptChannel = (ServerSocketChannel) key.channel();
 		SocketChannel channel = acceptChannel.accept();
+		if(channel == null) {
+			return;
+		}
+		
 		channel.configureBlocking(false);
-		clientChannels.add(channel);
-		channel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		Session session = new Session(channel, channel.register(selector, SelectionKey.OP_READ));
+		session.snapshotByteBudget = snapshotByteBudget;
 
 //		int[] playerParticles = createPlayerParticles();
 //		clientParticles.put(channel, playerParticles);
 
-		int playerID = createPlayer();
-		clientIdentities.put(channel, playerID);
-
-		ByteBuffer joinAcknowledgeBuf = new UniversalDTO(-1, "elohim", "join-acknowledge", new float[] { playerID }).asBuffer();
-		channel.write(joinAcknowledgeBuf);
-
-		if(joinAcknowledgeBuf.remaining() > 0) {
-			toClientUpdateBufs.put(channel, joinAcknowledgeBuf);
-		}
+		inbound.add(new ClientEvent(ClientEvent.CONNECTED, session, null, null));
 	}
 
-	private void read(SelectionKey key) throws IOException {
-		SocketChannel channel = (SocketChannel) key.channel();
-
-		ByteBuffer readBuf = ByteBuffer.allocate(4096);
+	private void read(Session session) throws IOException {
+		readBuf.clear();
 		int bytesRead;
 		try {
-			bytesRead = channel.read(readBuf);
+			bytesRead = session.channel.read(readBuf);
 		} catch (IOException e) {
 			bytesRead = -1;
 		}
 
 		if(bytesRead == -1) {
 			// Connection was closed by client
-			clientChannels.remove(channel);
-			channel.close();
-			key.cancel();
+			disconnect(session);
 		} else {
+			session.bytesReceived += bytesRead;
 			readBuf.flip();
-			ByteBuffer updateBuf = fromClientUpdateBufs.get(channel);
+			ByteBuffer updateBuf = session.fromClientUpdateBuf;
 
 			while(readBuf.remaining() > 0) {
-				if(updateBuf == null) {
-					ByteBuffer updateBufLenBuf = fromClientUpdateBufLens.get(channel);
-					if(updateBufLenBuf == null) {
-						updateBufLenBuf = ByteBuffer.allocate(4);
-						fromClientUpdateBufLens.put(channel, updateBufLenBuf);
-					}
+				if(session.fromClientSkipBytes > 0) {
+					// Dropped message, consume without looking at it
+					int skipped = Math.min(session.fromClientSkipBytes, readBuf.remaining());
+					readBuf.position(readBuf.position() + skipped);
+					session.fromClientSkipBytes -= skipped;
+				} else if(updateBuf == null) {
+					ByteBuffer updateBufLenBuf = session.fromClientUpdateBufLen;
 
 					updateBufLenBuf.put(readBuf.get());
 					if(updateBufLenBuf.remaining() == 0) {
 						updateBufLenBuf.flip();
-						int len = updateBufLenBuf.getInt();
-						fromClientUpdateBufLens.remove(channel);
-						updateBuf = ByteBuffer.allocate(len);
+						int len = checkMessageLength(updateBufLenBuf.getInt());
+						updateBufLenBuf.clear();
+						
+						if(session.messageLimit.tryTake(System.nanoTime())) {
+							updateBuf = ByteBuffer.allocate(len);
+						} else {
+							++session.messagesDropped;
+							session.fromClientSkipBytes = len;
+						}
 					}
 				} else {
 					updateBuf.put(readBuf.get());
 					if(updateBuf.remaining() == 0) {
 						UniversalDTO dto;
 						try {
-							int clientID = clientIdentities.get(channel);
-							dto = (UniversalDTO) new ObjectInputStream(new ByteArrayInputStream(updateBuf.array())).readObject();
-							handleClientDTO(clientID, dto);
+							dto = decode(updateBuf.array(), updateBuf.capacity());
+							receive(session, dto);
 							updateBuf = null;
 						} catch (ClassNotFoundException e) {
 							e.printStackTrace();
@@ -162,30 +797,72 @@ public class Server implements Runnable {
 
 			// If there is an unfinished updateBuf, keep it for the next read,
 			// if it is finished and decoded, put the null so it isnt read twice
-			fromClientUpdateBufs.put(channel, updateBuf);
+			session.fromClientUpdateBuf = updateBuf;
 		}
 	}
 
-	private void write(SelectionKey key) {
-		SocketChannel channel = (SocketChannel) key.channel();
-		ByteBuffer pendingBuf = toClientUpdateBufs.get(channel);
+	private void write(Session session) throws IOException {
+		ByteBuffer pendingBuf = session.toClientUpdateBuf;
 
 		if(pendingBuf != null) {
-			try {
-				channel.write(pendingBuf);
+			session.bytesSent += session.channel.write(pendingBuf);
 
-				if(pendingBuf.remaining() == 0) {
-					toClientUpdateBufs.remove(channel);
-				}
-			} catch (IOException e) {
-				e.printStackTrace();
+			if(pendingBuf.remaining() == 0) {
+				session.frameWritten(pendingBuf.limit(), System.nanoTime() - session.toClientUpdateQueuedTime, session.toClientUpdateWaited);
+				
+				// Events that queued up behind the frame are next
+				session.toClientUpdateBuf = session.pendingEvents.poll();
+				session.toClientUpdateQueuedTime = System.nanoTime();
+				session.toClientUpdateWaited = false;
+			} else {
+				// Rest is written once the socket is writable again
+				session.toClientUpdateWaited = true;
+			}
+		}
+		
+		if(session.toClientUpdateBuf == null) {
+			// Nothing left to write, stop waking up for writability until the next snapshot
+			session.key.interestOps(session.key.interestOps() & ~SelectionKey.OP_WRITE);
+		}
+	}
+	
+	private void queueWrite(Session session, ByteBuffer buf) {
+		session.toClientUpdateBuf = buf;
+		session.toClientUpdateQueuedTime = System.nanoTime();
+		session.toClientUpdateWaited = false;
+		
+		try {
+			// Usually the socket buffer takes it all right away, only wait for writability otherwise
+			write(session);
+			
+			if(session.toClientUpdateBuf != null) {
+				session.key.interestOps(session.key.interestOps() | SelectionKey.OP_WRITE);
 			}
+		} catch (CancelledKeyException | IOException e) {
+			e.printStackTrace();
+			disconnect(session);
+		}
+	}
+	
+	/**
+	 * Closes the session and tells the simulation the player is gone, only the first call per session has an effect.
+	 */
+	private void disconnect(Session session) {
+		if(session.close()) {
+			if(session.joined) {
+				joinedSessions.remove(session);
+			}
+			
+			if(session.key != null && session.compressor != null) {
+				// Served by the selector, so this thread is the only one using the compressor
+				session.compressor.disable();
+			}
+			
+			inbound.add(new ClientEvent(ClientEvent.DISCONNECTED, session, null, null));
 		}
 	}
 
 	private void handleNetworkData() throws IOException {
-		selector.selectNow();
-
 		Iterator<SelectionKey> it = selector.selectedKeys().iterator();
 		while(it.hasNext()) {
 			SelectionKey key = it.next();
@@ -197,29 +874,33 @@ public class Server implements Runnable {
 
 			if(key.isAcceptable()) {
 				accept(key);
+				continue;
 			}
 
+			Session session = (Session) key.attachment();
 			try {
 				if(key.isReadable()) {
-					read(key);
+					read(session);
 				}
 
-				if(key.isWritable()) {
-					write(key);
+				if(key.isValid() && key.isWritable()) {
+					write(session);
 				}
 			} catch (CancelledKeyException | IOException e) {
 				// When error occurs with communication, remove the player and associated data
 				e.printStackTrace();
-				killPlayer(key.channel());
-				clientChannels.remove(key.channel());
-				key.channel().close();
-				key.cancel();
+				disconnect(session);
 			}
 		}
 	}
 
 	private void handleClientDTO(int clientID, UniversalDTO dto) {
 		String evt = dto.getEvent();
+		
+		if(evt.equals("request-steer") && dto.getData().length > 2) {
+			// Acknowledge even frozen inputs, the client predicts the freeze on its own
+			world.acknowledgeInput(clientID, Math.round(dto.getData()[2]));
+		}
 
 		// Freeze controls if time reversed
 		if(world.get(clientID, World.REVERSED) > 0) {
@@ -243,6 +924,19 @@ public class Server implements Runnable {
 			float bulletStartPosY = playerPosY + 0.5f * bulletDirY * (playerDimY + bulletDiameter);
 			float bulletVelX = bulletDirX * BULLET_VELOCITY_MAGNITUDE;
 			float bulletVelY = bulletDirY * BULLET_VELOCITY_MAGNITUDE;
+			
+			// Third value is the time of the world as the shooter saw it, compensate for the time since
+			float lag = (dto.getData().length > 2) ? world.getLagSince(dto.getData()[2]) : 0.0f;
+			int hitPlayerID = world.findLagCompensatedHit(clientID, bulletStartPosX, bulletStartPosY, bulletVelX, bulletVelY, bulletDiameter, lag);
+			if(hitPlayerID != -1) {
+				// Would have hit already, so there is no bullet left to spawn
+				world.set(hitPlayerID, World.REVERSED, World.BULLET_HIT_REVERSE_DURATION);
+				return;
+			}
+			
+			// Start where the bullet would be by now if the shot had arrived right away
+			bulletStartPosX += lag * bulletVelX;
+			bulletStartPosY += lag * bulletVelY;
 
 			int bullet = world.addEntity();
 			world.set(bullet, World.KIND, World.KIND_VAL_BULLET);
@@ -253,7 +947,7 @@ public class Server implements Runnable {
 			world.set(bullet, World.POSITION_Y, bulletStartPosY);
 			world.set(bullet, World.VELOCITY_X, bulletVelX);
 			world.set(bullet, World.VELOCITY_Y, bulletVelY);
-			world.set(bullet, World.LIFETIME, 2.0f);
+			world.set(bullet, World.LIFETIME, 2.0f - lag);
 			world.set(bullet, World.COLOR_R, 178.0f/255.0f);
 			world.set(bullet, World.COLOR_G, 123.0f/255.0f);
 			world.set(bullet, World.COLOR_B, 13.0f/255.0f);
@@ -261,16 +955,17 @@ public class Server implements Runnable {
 	}
 
 	private void broadcastWorldState() {
-		ByteBuffer state = world.getFullStateUpdateDTO().asBuffer();
-		broadcast(state);
+		publish(world.getFullStateUpdateDTO());
 	}
 
-	private void broadcast(ByteBuffer buf) {
-		for(SocketChannel aClient : clientChannels) {
-			ByteBuffer updateBuf = toClientUpdateBufs.get(aClient);
-
-			if(updateBuf == null) {
-				toClientUpdateBufs.put(aClient, buf.asReadOnlyBuffer());
+	private void broadcast(OutgoingMessage snapshot) {
+		float sendInterval = sendIntervalNanos / 1_000_000_000.0f;
+		
+		// Backwards, since a failing write removes the client from the list
+		for(int i = joinedSessions.size() - 1; i >= 0; --i) {
+			Session aClient = joinedSessions.get(i);
+			if(aClient.acceptSnapshot(aClient.toClientUpdateBuf != null, sendInterval)) {
+				queueWrite(aClient, encodeFor(aClient, snapshot));
 			}
 		}
 	}
@@ -308,8 +1003,8 @@ public class Server implements Runnable {
 		float x, y;
 		boolean hasInitialColission;
 		do {
-			x = (float) ((Math.random() - 0.5) * (Shell.WIDTH - 0.5*diameter));
-			y = (float) ((Math.random() - 0.5) * (Shell.HEIGHT - 0.5*diameter));
+			x = (float) ((Math.random() - 0.5) * (World.VIEW_WIDTH - 0.5*diameter));
+			y = (float) ((Math.random() - 0.5) * (World.VIEW_HEIGHT - 0.5*diameter));
 			
 			hasInitialColission = world.isOccuppied(x, y, 0.5f * diameter);
 		} while(hasInitialColission);
@@ -336,13 +1031,25 @@ public class Server implements Runnable {
 		return playerID;
 	}
 
-	private void killPlayer(SelectableChannel channel) {
-		int id = clientIdentities.get(channel);
-		world.removePlayer(id);
+	private void killPlayer(Session session) {
+		if(playerSessions.remove(session)) {
+			if(!session.isLocal()) {
+				--remoteSessionCount;
+			}
+			
+			world.removePlayer(session.playerID);
+			sendToAll(World.getPlayerLeaveDTO(session.playerID));
+			System.out.println("Client left: " + session);
+		}
 	}
 
 	private void executeMechanics(float dt) {
 		world.update(dt);
+		
+		UniversalDTO scoreUpdate = world.getScoreUpdateDTO();
+		if(scoreUpdate != null) {
+			sendToAll(scoreUpdate);
+		}
 	}
 	
 	/**
@@ -0,0 +1,296 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Everything the server knows about a single client connection.
+ *
+ * When served by the selector, the session is attached to the SelectionKey of its channel, so
+ * handling a network event needs no lookups. A session is created on accept, joins once the
+ * simulation has assigned a player and is closed exactly once, after which its buffers are released.
+ *
+ * Sessions of clients in the same process have no channel at all and exchange DTOs through queues.
+ *
+ * Remote sessions estimate the throughput of their connection from how long frames take to be written
+ * and adapt how many of the published snapshots they actually send, see {@link #acceptSnapshot(boolean, float)}.
+ */
+public class Session {
+	/** Largest snapshot interval a congested client degrades to, that is every 4th snapshot */
+	private static final int MAX_SNAPSHOT_INTERVAL = 4;
+	/** Byte budget for snapshots to clients that are congested even at the largest snapshot interval */
+	private static final int CONGESTED_SNAPSHOT_BYTE_BUDGET = 8192;
+	/** Published snapshots without backlog before trying a shorter snapshot interval again */
+	private static final int SPEED_UP_AFTER_SNAPSHOTS = 30;
+	/** Weight of the newest measurement in the throughput and frame size estimates */
+	private static final double ESTIMATE_WEIGHT = 0.2;
+	
+	/** Largest message a client may send, anything larger is a broken or malicious client */
+	static final int MAX_CLIENT_MESSAGE_BYTES = 1024;
+	/** Messages of any kind per second and in a burst, checked before a message is decoded, admitted steers are refunded */
+	private static final double MESSAGES_PER_SECOND = 300.0;
+	private static final double MESSAGE_BURST = 100.0;
+	/** Steering inputs per second and in a burst, clients send one per input sample, see {@link Shell#MAX_INPUT_RATE} */
+	static final double STEERS_PER_SECOND = 250.0;
+	private static final double STEER_BURST = 60.0;
+	/** Shots in a burst, on average clients may only shoot once every {@link Server#SHOOT_COOLDOWN} */
+	private static final double SHOOT_BURST = 2.0;
+
+	/** Connection to the client, null for local clients */
+	public final SocketChannel channel;
+
+	/** Key of the channel if served by the selector, null in thread-per-connection mode */
+	SelectionKey key;
+	/**
+	 * Pending writes if served by its own threads, null when served by the selector. Events always go in,
+	 * snapshots only if it is empty, so it never holds stale snapshots.
+	 */
+	final BlockingQueue<OutgoingMessage> outbox;
+	/** Connection to a client in the same process, served by the simulation thread, null for remote clients */
+	final ClientChannel localChannel;
+
+	// Owned by the network thread, or the reading thread in thread-per-connection mode
+	/** Length prefix of the next message from the client, reused for every message */
+	ByteBuffer fromClientUpdateBufLen = ByteBuffer.allocate(4);
+	/** Message from the client that is not fully received yet */
+	ByteBuffer fromClientUpdateBuf;
+	/** Remaining bytes of a message from the client that is dropped without receiving it */
+	int fromClientSkipBytes;
+	
+	// Input limits, owned by the thread reading from the client, or the simulation thread for local clients
+	/** Limits messages of any kind, taken before the message is allocated */
+	final TokenBucket messageLimit = new TokenBucket(MESSAGES_PER_SECOND, MESSAGE_BURST);
+	final TokenBucket steerLimit = new TokenBucket(STEERS_PER_SECOND, STEER_BURST);
+	final TokenBucket shootLimit = new TokenBucket(1.0 / Server.SHOOT_COOLDOWN, SHOOT_BURST);
+
+	// Owned by the network thread
+	/** Message to the client that is not fully written yet */
+	ByteBuffer toClientUpdateBuf;
+	/** Encoded events to write after the current message, before any further snapshot */
+	final Queue<ByteBuffer> pendingEvents = new ArrayDeque<>();
+	/** Time in nanoseconds when the pending message to the client was queued */
+	long toClientUpdateQueuedTime;
+	/** True if the socket did not take the pending message in a single write */
+	boolean toClientUpdateWaited;
+	/** True once the client got its join acknowledgement and should receive snapshots */
+	boolean joined;
+
+	// Set by the reading thread when the client asks for it, used by the writing thread
+	/** Compresses frames to this client, null if the client did not ask for compression */
+	volatile FrameCompressor compressor;
+
+	// Owned by the writing thread
+	/** Decides which entities go into snapshots with a byte budget, null for local clients */
+	final SnapshotPacker packer;
+	/** Maximum bytes of a snapshot to this client, 0 for full snapshots unless congested */
+	int snapshotByteBudget;
+
+	// Owned by the simulation thread
+	/** Player entity of this client, -1 until the simulation created it */
+	int playerID = -1;
+
+	// Snapshot rate adaptation, owned by the thread deciding which snapshots to send
+	/** Only every n-th published snapshot is sent to this client */
+	int snapshotInterval = 1;
+	private int snapshotsUntilNext;
+	private int snapshotsWithoutBacklog;
+	/** Estimated bytes per second the connection can take, 0 while nothing is known about the link */
+	private volatile double throughputEstimate;
+	/** Frames written one after the other without waiting for the link, only used by the writing thread */
+	private int framesWithoutWait;
+	/** Estimated size of a snapshot frame as actually written, after compression */
+	private volatile double frameBytesEstimate;
+
+	// Statistics, each written by one thread only
+	volatile long bytesReceived;
+	volatile long messagesReceived;
+	volatile long messagesDropped;
+	volatile long bytesSent;
+	volatile long snapshotsSent;
+	volatile long snapshotsSkipped;
+
+	private final AtomicBoolean closed = new AtomicBoolean();
+
+	/**
+	 * Creates a session served by the selector and attaches it to the key.
+	 */
+	Session(SocketChannel channel, SelectionKey key) {
+		this.channel = channel;
+		this.key = key;
+		this.outbox = null;
+		this.localChannel = null;
+		this.packer = new SnapshotPacker();
+		key.attach(this);
+	}
+
+	/**
+	 * Creates a session served by its own reading and writing thread.
+	 */
+	Session(SocketChannel channel) {
+		this.channel = channel;
+		this.key = null;
+		this.outbox = new LinkedBlockingQueue<>();
+		this.localChannel = null;
+		this.packer = new SnapshotPacker();
+	}
+
+	/**
+	 * Creates a session for a client in the same process.
+	 */
+	Session(ClientChannel localChannel) {
+		this.channel = null;
+		this.key = null;
+		this.outbox = null;
+		this.localChannel = localChannel;
+		this.packer = null;
+	}
+
+	/**
+	 * Called by the writing thread when a frame was completely written.
+	 *
+	 * @param bytes size of the frame
+	 * @param nanos time from starting to write until the last byte was accepted by the socket
+	 * @param waited true if writing had to wait for the link, because the socket did not take the frame at once or
+	 *               other messages piled up behind it
+	 */
+	void frameWritten(int bytes, long nanos, boolean waited) {
+		if(snapshotByteBudget > 0 || snapshotInterval < MAX_SNAPSHOT_INTERVAL) {
+			// Frames packed only because of congestion are smaller than what a shorter interval would send
+			frameBytesEstimate = (frameBytesEstimate == 0) ? bytes : (1 - ESTIMATE_WEIGHT) * frameBytesEstimate + ESTIMATE_WEIGHT * bytes;
+		}
+
+		if(!waited) {
+			// Went right into the socket buffer, the time says how fast the system call was, not the link
+			if(++framesWithoutWait == SPEED_UP_AFTER_SNAPSHOTS) {
+				// Link recovered since it was last measured, forget the old estimate so the rate can go up again
+				throughputEstimate = 0;
+			}
+			return;
+		}
+
+		framesWithoutWait = 0;
+		double throughput = bytes / Math.max(nanos / 1_000_000_000.0, 0.0001);
+		throughputEstimate = (throughputEstimate == 0) ? throughput : (1 - ESTIMATE_WEIGHT) * throughputEstimate + ESTIMATE_WEIGHT * throughput;
+	}
+
+	/**
+	 * Decides whether a newly published snapshot should be sent to this client and adapts the
+	 * snapshot interval to the connection, while the simulation keeps running at full rate.
+	 *
+	 * The interval doubles right away if the previous frame is still being written or if the estimated
+	 * throughput could not deliver a frame within the interval. It halves again after a while without
+	 * backlog if the estimate says the shorter interval is sustainable.
+	 *
+	 * @param backlogged true if an earlier frame to this client is not completely written yet
+	 * @param publishInterval seconds between two published snapshots
+	 * @return true if the snapshot should be sent
+	 */
+	boolean acceptSnapshot(boolean backlogged, float publishInterval) {
+		int previousInterval = snapshotInterval;
+
+		if(backlogged) {
+			snapshotsWithoutBacklog = 0;
+			snapshotInterval = Math.min(MAX_SNAPSHOT_INTERVAL, 2 * snapshotInterval);
+		} else if(!canSustain(snapshotInterval, publishInterval)) {
+			snapshotInterval = Math.min(MAX_SNAPSHOT_INTERVAL, 2 * snapshotInterval);
+		} else if(++snapshotsWithoutBacklog >= SPEED_UP_AFTER_SNAPSHOTS && snapshotInterval > 1 && canSustain(snapshotInterval / 2, publishInterval)) {
+			snapshotsWithoutBacklog = 0;
+			snapshotInterval /= 2;
+		}
+
+		if(snapshotInterval != previousInterval) {
+			snapshotsUntilNext = Math.min(snapshotsUntilNext, snapshotInterval);
+
+			if((snapshotInterval == 1) != (previousInterval == 1) || (snapshotInterval == MAX_SNAPSHOT_INTERVAL) != (previousInterval == MAX_SNAPSHOT_INTERVAL)) {
+				// Only log changes between full rate, reduced rate and congestion, not every step in between
+				System.out.println("Sending 1 of every " + snapshotInterval + " snapshots to " + this);
+			}
+		}
+
+		if(backlogged || --snapshotsUntilNext > 0) {
+			++snapshotsSkipped;
+			return false;
+		}
+
+		snapshotsUntilNext = snapshotInterval;
+		++snapshotsSent;
+		return true;
+	}
+
+	/**
+	 * @return maximum bytes of the next snapshot to this client, or 0 if it should get a full snapshot
+	 */
+	int getSnapshotByteBudget() {
+		if(snapshotByteBudget > 0) {
+			return snapshotByteBudget;
+		}
+
+		// Sending less often did not help enough, send less, too
+		return (snapshotInterval == MAX_SNAPSHOT_INTERVAL) ? CONGESTED_SNAPSHOT_BYTE_BUDGET : 0;
+	}
+
+	private boolean canSustain(int interval, float publishInterval) {
+		if(throughputEstimate == 0) {
+			// Nothing measured yet, assume the best
+			return true;
+		}
+
+		double secondsPerFrame = frameBytesEstimate / throughputEstimate;
+		return secondsPerFrame <= interval * publishInterval;
+	}
+
+	public boolean isLocal() {
+		return channel == null;
+	}
+
+	public boolean isClosed() {
+		return closed.get();
+	}
+
+	/**
+	 * Closes the connection and releases buffers, may safely be called from multiple threads.
+	 *
+	 * @return true for the one call that actually closed the session
+	 */
+	boolean close() {
+		if(!closed.compareAndSet(false, true)) {
+			return false;
+		}
+
+		if(key != null) {
+			key.cancel();
+			key.attach(null);
+		}
+
+		if(channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		fromClientUpdateBufLen = null;
+		fromClientUpdateBuf = null;
+		toClientUpdateBuf = null;
+		pendingEvents.clear();
+		if(outbox != null) {
+			outbox.clear();
+		}
+
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "Session[player " + playerID + ", " + messagesReceived + " messages/" + bytesReceived + " bytes in, " + messagesDropped + " messages dropped, " +
+				snapshotsSent + " snapshots/" + bytesSent + " bytes out, " + snapshotsSkipped + " snapshots skipped, " +
+				Math.round(throughputEstimate / 1024) + " KiB/s estimated" +
+				((compressor == null) ? "" : ", " + compressor) + "]";
+	}
+}
@@ -2,18 +2,14 @@
 import java.awt.AWTEvent;
 import java.awt.Canvas;
 import java.awt.Color;
+import java.awt.DisplayMode;
 import java.awt.Graphics2D;
-import java.awt.MouseInfo;
-import java.awt.Point;
 import java.awt.RenderingHints;
 import java.awt.Toolkit;
-import java.awt.event.AWTEventListener;
-import java.awt.event.MouseEvent;
 import java.awt.image.BufferStrategy;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.LockSupport;
 
 import javax.swing.JFrame;
-import javax.swing.SwingUtilities;
 
 public class Shell {
 	/** Mouse position in the window with 0 being the center of the window and 0.5*WIDTH being the right */
@@ -23,150 +19,234 @@ public class Shell {
 	
 	private static float mouseXWorld;
 	private static float mouseYWorld;
+	/** True if held down at the time of sampling or pressed at any time since the last sample */
 	public static boolean mousePressed;
+	/** True if released at any time since the last sample */
 	public static boolean mouseReleased;
 	public static boolean rightMousePressed;
 	public static boolean rightMouseReleased;
 	
-	private static boolean mousePressedNextFrame;
-	private static boolean rightMousePressedNextFrame;
-	private static boolean mouseReleasedNextFrame;
-	private static boolean rightMouseReleasedNextFrame;
+	/** Directions held down or pressed since the last sample, as in {@link InputCapture} */
+	private static int directions;
+	/** Time of the last press of the primary mouse button since the last sample, or 0 if it was held all along */
+	private static long mousePressTime;
 	
-	public static final int WIDTH = 800;
-	public static final int HEIGHT = 600;
+	public static final int WIDTH = World.VIEW_WIDTH;
+	public static final int HEIGHT = World.VIEW_HEIGHT;
+	
+	/** Default for how often per second input is sent and server messages are handled */
+	private static final float DEFAULT_INPUT_RATE = 60.0f;
+	/** Input rate limit, the server drops steering inputs beyond {@link Session#STEERS_PER_SECOND} */
+	static final float MAX_INPUT_RATE = 200.0f;
+	/** Frame rate if no target is configured and the display does not tell its refresh rate */
+	private static final float DEFAULT_FRAME_RATE = 60.0f;
+	
+	private static final Color BACKGROUND_COLOR = new Color(18.0f/255.0f, 36.0f/255.0f, 64.0f/255.0f);
 	
 	private static BufferStrategy bufferStrategy;
 	private static Canvas canvas;
-	private static World world;
+	/** Only used by the thread calling {@link #run(ClientChannel)} */
+	private static ClientWorld world;
+	/** Copies of the world handed from the input thread to the render thread */
+	private static TripleBuffer<ClientWorld> frames;
+	private static WorldRenderer renderer;
+	private static InputCapture input;
 	
-	private static final float SHOOT_COOLDOWN = 1.0f;
 	private static float remainingShootCooldown;
-	public static void run(BlockingQueue<UniversalDTO> fromServer, BlockingQueue<UniversalDTO> toServer) {
+	/** Sequence number of the last steering input sent, floats represent these exactly up to 2^24 */
+	private static int inputSequence;
+	
+	/**
+	 * Opens the window, starts rendering on its own thread and then handles input and server messages on the
+	 * calling thread, both at a fixed rate.
+	 * 
+	 * The input rate can be set with the system property <code>deuterium.client.inputRate</code>, up to
+	 * {@value #MAX_INPUT_RATE} per second, the frame rate
+	 * with <code>deuterium.client.fps</code>. Without a frame rate, frames are paced to the refresh rate of the display.
+	 * 
+	 * @param channel connection to the server, this thread is its client side
+	 */
+	public static void run(ClientChannel channel) {
 		initWindow();
-		world = new World();
+		world = new ClientWorld();
+		frames = new TripleBuffer<>(new ClientWorld(), new ClientWorld(), new ClientWorld());
+		renderer = new WorldRenderer();
+		
+		initInput();
 		
-		initKeyboard();
-		initMouseClicks();
+		long frameIntervalNanos = (long) (1_000_000_000L / getRateProperty("deuterium.client.fps", getDisplayRefreshRate()));
+		Thread renderThread = new Thread(() -> runRender(frameIntervalNanos), "render");
+		renderThread.setDaemon(true);
+		renderThread.start();
 		
+		float inputRate = Math.min(getRateProperty("deuterium.client.inputRate", DEFAULT_INPUT_RATE), MAX_INPUT_RATE);
+		long inputIntervalNanos = (long) (1_000_000_000L / inputRate);
+		long lastInputTime = System.nanoTime();
+		while(true) {
+			long thisInputTime = System.nanoTime();
+			long untilNextInput = lastInputTime + inputIntervalNanos - thisInputTime;
+			
+			if(untilNextInput > 0) {
+				LockSupport.parkNanos(untilNextInput);
+				continue;
+			}
+			
+			float dt = (thisInputTime - lastInputTime) / 1_000_000_000.0f;
+			
+			sampleInput();
+			
+			receiveServerMessages(channel);
+			
+			sendInputMessagesToServer(channel, dt);
+			
+			// Hand the render thread a copy, so this thread can go on changing the world while it is drawn
+			frames.getBack().copyFrom(world);
+			frames.publish();
+			
+			lastInputTime = thisInputTime;
+		}
+	}
+	
+	private static void runRender(long frameIntervalNanos) {
 		long lastFrameTime = System.nanoTime();
+		long nextFrameTime = lastFrameTime;
 		while(true) {
 			long thisFrameTime = System.nanoTime();
-			float dt = (thisFrameTime - lastFrameTime) / 1_000_000_000.0f;
+			long untilNextFrame = nextFrameTime - thisFrameTime;
 			
-			if(dt > 0.0166666f) {
-				System.err.println("Delta time was long: " + dt + "s");
+			if(untilNextFrame > 0) {
+				LockSupport.parkNanos(untilNextFrame);
+				continue;
 			}
 			
-			receiveServerMessages(fromServer);
-			
-			sendInputMessagesToServer(toServer, dt);
+			float dt = (thisFrameTime - lastFrameTime) / 1_000_000_000.0f;
 			
-			run(dt);
+			// Draw again even without news from the input thread, particles and traps keep moving
+			frames.acquire();
+			render(frames.getFront(), dt);
 			
 			lastFrameTime = thisFrameTime;
+			// Do not try to catch up on missed frames, just draw the next one as soon as possible
+			nextFrameTime = Math.max(nextFrameTime + frameIntervalNanos, thisFrameTime);
 		}
 	}
+	
+	private static float getRateProperty(String name, float defaultRate) {
+		String rate = System.getProperty(name);
+		if(rate == null) {
+			return defaultRate;
+		}
+		
+		try {
+			float parsed = Float.parseFloat(rate);
+			if(parsed > 0) {
+				return parsed;
+			}
+		} catch (NumberFormatException e) {
+			// Warn below, like for zero or negative rates
+		}
+		
+		System.err.println("Ignoring " + name + "=" + rate + ", not a positive number");
+		return defaultRate;
+	}
+	
+	private static float getDisplayRefreshRate() {
+		int refreshRate = canvas.getGraphicsConfiguration().getDevice().getDisplayMode().getRefreshRate();
+		return (refreshRate == DisplayMode.REFRESH_RATE_UNKNOWN) ? DEFAULT_FRAME_RATE : refreshRate;
+	}
 
-	private static void sendInputMessagesToServer(BlockingQueue<UniversalDTO> toServer, float dt) {
+	private static void sendInputMessagesToServer(ClientChannel channel, float dt) {
 		if(world.localPlayerID == -1) {
 			// If server has not assigned a player ID yet, ignore controls
 			return;
 		}
 		
-		locateMouse();
-		try {
-			remainingShootCooldown = Math.max(0, remainingShootCooldown-dt);
-			
-			boolean[] wasd = KeyInput.getWASD();
-			
-			float keyboardDirectionX = ((wasd[3] ? 1f : 0f) - (wasd[1] ? 1f : 0f)) * (wasd[0] != wasd[2] ? 0.7f : 1f);
-			float keyboardDirectionY = ((wasd[0] ? 1f : 0f) - (wasd[2] ? 1f : 0f)) * (wasd[1] != wasd[3] ? 0.7f : 1f);
-			
-			// If the mouse is exactly above the player, ignore the steer request
-			toServer.put(new UniversalDTO(-1, "client", "request-steer", new float[] { keyboardDirectionX, keyboardDirectionY }));
+		mouseXWorld = mouseXScreen + world.getCameraPositionX();
+		mouseYWorld = mouseYScreen + world.getCameraPositionY();
+		
+		remainingShootCooldown = Math.max(0, remainingShootCooldown-dt);
+		
+		boolean up = (directions & InputCapture.UP) != 0;
+		boolean left = (directions & InputCapture.LEFT) != 0;
+		boolean down = (directions & InputCapture.DOWN) != 0;
+		boolean right = (directions & InputCapture.RIGHT) != 0;
+		
+		float keyboardDirectionX = ((right ? 1f : 0f) - (left ? 1f : 0f)) * (up != down ? 0.7f : 1f);
+		float keyboardDirectionY = ((up ? 1f : 0f) - (down ? 1f : 0f)) * (left != right ? 0.7f : 1f);
+		
+		// If the mouse is exactly above the player, ignore the steer request
+		++inputSequence;
+		// Never wait for the server side, if it does not keep up the input is dropped and reconciliation corrects the prediction
+		channel.offerToServer(new UniversalDTO(-1, "client", "request-steer", new float[] { keyboardDirectionX, keyboardDirectionY, inputSequence }));
+		// Move right away instead of waiting for the server to echo the input back
+		world.predictLocalPlayer(inputSequence, keyboardDirectionX, keyboardDirectionY, dt);
+		
+		if(mousePressed && remainingShootCooldown == 0.0f) {
+			float mouseDirectionX = mouseXWorld - world.get(world.localPlayerID, World.POSITION_X);
+			float mouseDirectionY = mouseYWorld - world.get(world.localPlayerID, World.POSITION_Y);
 			
-			if(mousePressed && remainingShootCooldown == 0.0f) {
-				float mouseDirectionX = mouseXWorld - world.get(world.localPlayerID, World.POSITION_X);
-				float mouseDirectionY = mouseYWorld - world.get(world.localPlayerID, World.POSITION_Y);
+			float mouseDirectionMagnitude = (float) Math.sqrt(mouseDirectionX*mouseDirectionX + mouseDirectionY*mouseDirectionY);
+			// When mouse is above player, magnitude is sqrt(0) = 0, ingore such cases
+			if(mouseDirectionMagnitude > 0) {
+				mouseDirectionX /= mouseDirectionMagnitude;
+				mouseDirectionY /= mouseDirectionMagnitude;
 				
-				float mouseDirectionMagnitude = (float) Math.sqrt(mouseDirectionX*mouseDirectionX + mouseDirectionY*mouseDirectionY);
-				// When mouse is above player, magnitude is sqrt(0) = 0, ingore such cases
-				if(mouseDirectionMagnitude > 0) {
-					mouseDirectionX /= mouseDirectionMagnitude;
-					mouseDirectionY /= mouseDirectionMagnitude;
-					
-					remainingShootCooldown = SHOOT_COOLDOWN;
-					toServer.put(new UniversalDTO(-1, "client", "request-shoot", new float[] { mouseDirectionX, mouseDirectionY }));
+				// Tell the server which state of the world the shot was aimed at, the click may have been a while ago
+				float observedDuration = world.getRemainingGameDuration();
+				if(mousePressTime != 0) {
+					observedDuration += (System.nanoTime() - mousePressTime) / 1_000_000_000.0f;
+				}
+				if(channel.offerToServer(new UniversalDTO(-1, "client", "request-shoot", new float[] { mouseDirectionX, mouseDirectionY, observedDuration }))) {
+					remainingShootCooldown = Server.SHOOT_COOLDOWN;
 				}
 			}
-		} catch (InterruptedException e) {
-			e.printStackTrace();
 		}
 	}
 
-	private static void receiveServerMessages(BlockingQueue<UniversalDTO> fromServer) {
+	private static void receiveServerMessages(ClientChannel channel) {
 		UniversalDTO nextDTO;
-		while((nextDTO = fromServer.poll()) != null) {
+		while((nextDTO = channel.pollFromServer()) != null) {
 			world.handleDTO(nextDTO);
 		}
 	}
 
-	private static void initKeyboard() {
-		Toolkit.getDefaultToolkit().addAWTEventListener(new KeyInput(), AWTEvent.KEY_EVENT_MASK);
+	private static void initInput() {
+		input = new InputCapture(canvas);
+		Toolkit.getDefaultToolkit().addAWTEventListener(input, AWTEvent.KEY_EVENT_MASK | AWTEvent.MOUSE_EVENT_MASK | AWTEvent.MOUSE_MOTION_EVENT_MASK);
 	}
-
-	private static void initMouseClicks() {
-		Toolkit.getDefaultToolkit().addAWTEventListener(new AWTEventListener() {	
-			@Override
-			public void eventDispatched(AWTEvent awtEvent) {
-				MouseEvent event = (MouseEvent) awtEvent;
+	
+	/**
+	 * Takes over the input captured since the last sample, so presses are not lost even if released again in between.
+	 */
+	private static void sampleInput() {
+		int pressed = 0;
+		int released = 0;
+		long primaryPressTime = 0;
+		
+		while(input.nextEvent()) {
+			if(input.isEventPress()) {
+				pressed |= input.getEventInput();
 				
-				synchronized (Shell.class) {
-					if(event.getID() == MouseEvent.MOUSE_PRESSED) {
-						if(event.getButton() == MouseEvent.BUTTON1) {
-							mousePressedNextFrame = true;
-						} else {
-							rightMousePressedNextFrame = true;
-						}
-					} else if(event.getID() == MouseEvent.MOUSE_RELEASED) {
-						if(event.getButton() == MouseEvent.BUTTON1) {
-							mousePressedNextFrame = false;
-							mouseReleasedNextFrame = true;
-						} else {
-							rightMousePressedNextFrame = false;
-							rightMouseReleasedNextFrame = true;
-						}
-					} else {
-						if(event.getButton() == MouseEvent.BUTTON1) {
-							mousePressedNextFrame = false;
-							mouseReleasedNextFrame = false;
-						} else {
-							rightMousePressedNextFrame = false;
-							rightMouseReleasedNextFrame = false;
-						}
-					}
+				if(input.getEventInput() == InputCapture.PRIMARY) {
+					primaryPressTime = input.getEventTime();
 				}
+			} else {
+				released |= input.getEventInput();
 			}
-		}, AWTEvent.MOUSE_EVENT_MASK);
-	}
-
-	private static void locateMouse() {
-		Point mousePos = MouseInfo.getPointerInfo().getLocation();
-		SwingUtilities.convertPointFromScreen(mousePos, canvas);
-		mouseXScreen = mousePos.x - WIDTH / 2.0f;
-		mouseYScreen = -(mousePos.y - HEIGHT / 2.0f);
+		}
 		
-		mouseXWorld = mouseXScreen + world.getCameraPositionX();
-		mouseYWorld = mouseYScreen + world.getCameraPositionY();
+		int held = input.getHeld();
 		
-		synchronized (Shell.class) {
-			mousePressed = mousePressedNextFrame;
-			mouseReleased = mouseReleasedNextFrame;
-			
-			rightMousePressed = rightMousePressedNextFrame;
-			rightMouseReleased = rightMouseReleasedNextFrame;
-		}
+		directions = held | pressed;
+		
+		mousePressed = ((held | pressed) & InputCapture.PRIMARY) != 0;
+		mouseReleased = (released & InputCapture.PRIMARY) != 0;
+		rightMousePressed = ((held | pressed) & InputCapture.SECONDARY) != 0;
+		rightMouseReleased = (released & InputCapture.SECONDARY) != 0;
+		mousePressTime = primaryPressTime;
+		
+		mouseXScreen = input.getMouseX() - WIDTH / 2.0f;
+		mouseYScreen = -(input.getMouseY() - HEIGHT / 2.0f);
 	}
 
 	private static void initWindow() {
@@ -186,24 +266,26 @@ public class Shell {
 		bufferStrategy = canvas.getBufferStrategy();
 	}
 
-	private static void run(float dt) {
+	private static void render(ClientWorld frame, float dt) {
 		Graphics2D g = (Graphics2D) bufferStrategy.getDrawGraphics();
 		
 		// Draw the background first
-		g.setColor(new Color(18.0f/255.0f, 36.0f/255.0f, 64.0f/255.0f));
+		g.setColor(BACKGROUND_COLOR);
 		g.fillRect(0, 0, WIDTH, HEIGHT);
 		
 //		g.setColor(Color.DARK_GRAY);
 //		g.drawLine(WIDTH/2, 0, WIDTH/2, HEIGHT);
 //		g.drawLine(0, HEIGHT/2, WIDTH, HEIGHT/2);
 		
-		// Then let world render itself
+		// Then draw the world on top
 		g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
 		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-		world.draw(dt, g);
+		renderer.draw(frame, dt, g);
 
 		g.dispose();
 		bufferStrategy.show();
+		// Flush to the display right away, some window systems would otherwise queue up frames
+		Toolkit.getDefaultToolkit().sync();
 	}
 	
 }
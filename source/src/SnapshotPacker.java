@@ -0,0 +1,146 @@
+/**
+ * Packs the entities of a full snapshot into a partial snapshot for one client that fits into a byte budget.
+ * 
+ * Every entity has a priority accumulator that grows each snapshot by the relevance of the entity for the
+ * client, which is higher for entities close to the client's player, fast entities and players and bullets
+ * compared to traps and stars. The entities with the highest accumulated priority are packed until the budget
+ * is used up, and their accumulators start over. Entities that do not fit keep their priority and are more
+ * likely to make it into the next snapshot.
+ * 
+ * Spawned and removed entities are always most relevant, since the client would otherwise keep drawing
+ * entities that are gone. The client's own player is always sent, since prediction reconciles against it.
+ */
+public class SnapshotPacker {
+	/** Rough size of a serialized partial snapshot without any floats or usernames */
+	private static final int DTO_OVERHEAD_BYTES = 256;
+	/** Size of one packed entity, that is its ID and its components as floats */
+	private static final int PACKED_ENTITY_BYTES = 4 * (1 + World.ENTITY_SIZE);
+	
+	/** Relevance of entities that were spawned or removed since the client last heard of them */
+	private static final float RELEVANCE_IN_USE_CHANGED = 1000.0f;
+	
+	private final float[] priorities = new float[World.ENTITY_COUNT_MAX];
+	/** Whether the client believes an entity is in use, as of the last time it was sent */
+	private final boolean[] clientInUse = new boolean[World.ENTITY_COUNT_MAX];
+	/** Entity IDs sorted by descending priority, reused for every snapshot */
+	private final int[] ranking = new int[World.ENTITY_COUNT_MAX];
+	
+	/**
+	 * Remembers that the client got a full snapshot and hence knows about every entity.
+	 * 
+	 * @param fullSnapshot DTO of an update-full
+	 */
+	public void fullSnapshotSent(UniversalDTO fullSnapshot) {
+		float[] data = fullSnapshot.getData();
+		int entitiesStart = data.length - World.ENTITY_SIZE * World.ENTITY_COUNT_MAX;
+		
+		for(int id = 0; id < World.ENTITY_COUNT_MAX; ++id) {
+			clientInUse[id] = data[entitiesStart + id * World.ENTITY_SIZE + World.IN_USE] == 1.0f;
+			priorities[id] = 0.0f;
+		}
+	}
+	
+	/**
+	 * Builds a partial snapshot with the same header as the full snapshot, followed by the count of
+	 * packed entities and then, for each of them, the entity ID and all its components.
+	 * 
+	 * @param fullSnapshot DTO of an update-full, is not modified
+	 * @param playerID entity ID of the player of the client
+	 * @param byteBudget approximate maximum size of the serialized partial snapshot
+	 * @return DTO of an update-partial
+	 */
+	public UniversalDTO pack(UniversalDTO fullSnapshot, int playerID, int byteBudget) {
+		float[] data = fullSnapshot.getData();
+		int entitiesStart = data.length - World.ENTITY_SIZE * World.ENTITY_COUNT_MAX;
+		
+		int playerOffset = entitiesStart + playerID * World.ENTITY_SIZE;
+		float playerPosX = data[playerOffset + World.POSITION_X];
+		float playerPosY = data[playerOffset + World.POSITION_Y];
+		
+		int candidateCount = 0;
+		for(int id = 0; id < World.ENTITY_COUNT_MAX; ++id) {
+			int offset = entitiesStart + id * World.ENTITY_SIZE;
+			boolean inUse = data[offset + World.IN_USE] == 1.0f;
+			
+			if(!inUse && !clientInUse[id]) {
+				// Client knows it is gone, nothing to tell
+				priorities[id] = 0.0f;
+				continue;
+			}
+			
+			if(id == playerID) {
+				priorities[id] = Float.MAX_VALUE;
+			} else if(inUse != clientInUse[id]) {
+				priorities[id] += RELEVANCE_IN_USE_CHANGED;
+			} else {
+				priorities[id] += relevance(data, offset, playerPosX, playerPosY);
+			}
+			
+			ranking[candidateCount++] = id;
+		}
+		
+		int usernamesBytes = fullSnapshot.getUsername().length();
+		int headerFloats = entitiesStart + 1;
+		int budgetLeft = byteBudget - DTO_OVERHEAD_BYTES - usernamesBytes - 4 * headerFloats;
+		// Own player is always sent, even if the budget is tiny
+		int packedCount = Math.min(candidateCount, Math.max(1, budgetLeft / PACKED_ENTITY_BYTES));
+		
+		// Partial selection sort, only the packed entities need to be in order
+		for(int i = 0; i < packedCount; ++i) {
+			int maxIdx = i;
+			for(int j = i + 1; j < candidateCount; ++j) {
+				if(priorities[ranking[j]] > priorities[ranking[maxIdx]]) {
+					maxIdx = j;
+				}
+			}
+			
+			int swap = ranking[i];
+			ranking[i] = ranking[maxIdx];
+			ranking[maxIdx] = swap;
+		}
+		
+		float[] packed = new float[headerFloats + packedCount * (1 + World.ENTITY_SIZE)];
+		System.arraycopy(data, 0, packed, 0, entitiesStart);
+		packed[entitiesStart] = packedCount;
+		
+		int packedOffset = headerFloats;
+		for(int i = 0; i < packedCount; ++i) {
+			int id = ranking[i];
+			int offset = entitiesStart + id * World.ENTITY_SIZE;
+			
+			packed[packedOffset] = id;
+			System.arraycopy(data, offset, packed, packedOffset + 1, World.ENTITY_SIZE);
+			packedOffset += 1 + World.ENTITY_SIZE;
+			
+			priorities[id] = 0.0f;
+			clientInUse[id] = data[offset + World.IN_USE] == 1.0f;
+		}
+		
+		return new UniversalDTO(-1, fullSnapshot.getUsername(), "update-partial", packed);
+	}
+	
+	private static float relevance(float[] data, int offset, float playerPosX, float playerPosY) {
+		float kind = data[offset + World.KIND];
+		float kindWeight;
+		if(kind == World.KIND_VAL_PLAYER) {
+			kindWeight = 4.0f;
+		} else if(kind == World.KIND_VAL_BULLET) {
+			kindWeight = 3.0f;
+		} else if(kind == World.KIND_VAL_TRAP) {
+			kindWeight = 2.0f;
+		} else {
+			kindWeight = 1.0f;
+		}
+		
+		float vx = data[offset + World.VELOCITY_X];
+		float vy = data[offset + World.VELOCITY_Y];
+		float speed = (float) Math.sqrt(vx*vx + vy*vy);
+		
+		float distX = data[offset + World.POSITION_X] - playerPosX;
+		float distY = data[offset + World.POSITION_Y] - playerPosY;
+		float distance = (float) Math.sqrt(distX*distX + distY*distY);
+		
+		// Speed relative to players, distance relative to what is visible on screen
+		return kindWeight * (1.0f + speed / Server.PLAYER_VELOCITY_MAGNITUDE) / (1.0f + distance / World.VIEW_WIDTH);
+	}
+}
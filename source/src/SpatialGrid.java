@@ -0,0 +1,155 @@
+import java.util.Arrays;
+
+/**
+ * Uniform grid over the world that knows which entities are in use near a point, so that finding the entities
+ * in a rectangle does not have to look at all of them.
+ *
+ * Each cell holds a doubly linked list of entity IDs kept in plain arrays, moving an entity to another cell is
+ * constant time and never allocates. An entity is in the cell of its center. Entities outside the world are put
+ * in the nearest cell on the border.
+ */
+public class SpatialGrid {
+	/** Edge length of a cell in world units */
+	private static final float CELL_SIZE = 128.0f;
+
+	private static final int COLUMNS = (int) Math.ceil((World.MAX_POSITION_X - World.MIN_POSITION_X) / CELL_SIZE);
+	private static final int ROWS = (int) Math.ceil((World.MAX_POSITION_Y - World.MIN_POSITION_Y) / CELL_SIZE);
+
+	private static final int NONE = -1;
+
+	/** First entity in each cell, or NONE if empty */
+	private final int[] cellHeads = new int[COLUMNS * ROWS];
+
+	// Per entity ID: cell it is in or NONE if not in use, and its neighbours in the list of that cell
+	private final int[] entityCells = new int[World.ENTITY_COUNT_MAX];
+	private final int[] nextInCell = new int[World.ENTITY_COUNT_MAX];
+	private final int[] previousInCell = new int[World.ENTITY_COUNT_MAX];
+
+	/** Largest dimension of any entity so far, queries grow by this much to find entities reaching in from other cells */
+	private float maxExtent;
+
+	public SpatialGrid() {
+		Arrays.fill(cellHeads, NONE);
+		Arrays.fill(entityCells, NONE);
+	}
+
+	/**
+	 * Moves an entity to the cell of its current position, or removes it if it is no longer in use.
+	 * Must be called whenever position, dimension or use of an entity change.
+	 *
+	 * @param entities all entities, with the same layout as in the {@link World}
+	 * @param entityID
+	 */
+	public void update(float[] entities, int entityID) {
+		int offset = entityID * World.ENTITY_SIZE;
+		int cell = NONE;
+
+		if(entities[offset + World.IN_USE] == 1.0f) {
+			int column = toColumn(entities[offset + World.POSITION_X]);
+			int row = toRow(entities[offset + World.POSITION_Y]);
+			cell = row * COLUMNS + column;
+
+			maxExtent = Math.max(maxExtent, Math.max(entities[offset + World.DIMENSION_X], entities[offset + World.DIMENSION_Y]));
+		}
+
+		if(cell == entityCells[entityID]) {
+			return;
+		}
+
+		if(entityCells[entityID] != NONE) {
+			unlink(entityID);
+		}
+
+		if(cell != NONE) {
+			link(entityID, cell);
+		}
+	}
+
+	/**
+	 * Updates all entities, e.g. after a full snapshot replaced them.
+	 */
+	public void updateAll(float[] entities) {
+		for(int entityID = 0; entityID < World.ENTITY_COUNT_MAX; ++entityID) {
+			update(entities, entityID);
+		}
+	}
+
+	/**
+	 * Makes this grid the same as another one.
+	 */
+	public void copyFrom(SpatialGrid other) {
+		System.arraycopy(other.cellHeads, 0, cellHeads, 0, cellHeads.length);
+		System.arraycopy(other.entityCells, 0, entityCells, 0, entityCells.length);
+		System.arraycopy(other.nextInCell, 0, nextInCell, 0, nextInCell.length);
+		System.arraycopy(other.previousInCell, 0, previousInCell, 0, previousInCell.length);
+		maxExtent = other.maxExtent;
+	}
+
+	/**
+	 * Finds entities that may overlap the given rectangle.
+	 *
+	 * Only cells near the rectangle are visited. Some of the found entities may still lie outside the rectangle,
+	 * callers have to check entities again if they need an exact answer.
+	 *
+	 * @param result receives the found entity IDs in no particular order, should have room for {@link World#ENTITY_COUNT_MAX}
+	 * @return number of IDs written to result
+	 */
+	public int query(float minX, float minY, float maxX, float maxY, int[] result) {
+		int minColumn = toColumn(minX - maxExtent);
+		int maxColumn = toColumn(maxX + maxExtent);
+		int minRow = toRow(minY - maxExtent);
+		int maxRow = toRow(maxY + maxExtent);
+
+		int count = 0;
+
+		for(int row = minRow; row <= maxRow; ++row) {
+			for(int column = minColumn; column <= maxColumn; ++column) {
+				for(int entityID = cellHeads[row * COLUMNS + column]; entityID != NONE; entityID = nextInCell[entityID]) {
+					result[count++] = entityID;
+				}
+			}
+		}
+
+		return count;
+	}
+
+	private void link(int entityID, int cell) {
+		int head = cellHeads[cell];
+
+		nextInCell[entityID] = head;
+		previousInCell[entityID] = NONE;
+		if(head != NONE) {
+			previousInCell[head] = entityID;
+		}
+
+		cellHeads[cell] = entityID;
+		entityCells[entityID] = cell;
+	}
+
+	private void unlink(int entityID) {
+		int next = nextInCell[entityID];
+		int previous = previousInCell[entityID];
+
+		if(previous == NONE) {
+			cellHeads[entityCells[entityID]] = next;
+		} else {
+			nextInCell[previous] = next;
+		}
+
+		if(next != NONE) {
+			previousInCell[next] = previous;
+		}
+
+		entityCells[entityID] = NONE;
+	}
+
+	private static int toColumn(float x) {
+		int column = (int) Math.floor((x - World.MIN_POSITION_X) / CELL_SIZE);
+		return Math.min(Math.max(column, 0), COLUMNS - 1);
+	}
+
+	private static int toRow(float y) {
+		int row = (int) Math.floor((y - World.MIN_POSITION_Y) / CELL_SIZE);
+		return Math.min(Math.max(row, 0), ROWS - 1);
+	}
+}
@@ -0,0 +1,244 @@
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.geom.Ellipse2D;
+import java.awt.image.VolatileImage;
+import java.util.Arrays;
+
+/**
+ * Keeps textures and colored circles pre-scaled, and for rotating entities pre-rotated, in accelerated images.
+ *
+ * Drawing an entity then is a plain copy at its position instead of an interpolated draw of the source texture
+ * through a full transform. Sprites are keyed by what they show and their size in whole pixels, rotating sprites
+ * additionally by one of {@value #ROTATION_STEPS} angles per turn.
+ *
+ * The contents of accelerated images can be lost at any time, for example when the display mode changes, so
+ * sprites are validated before each draw and rendered again when they were lost. If the graphics are for another
+ * device than before, all sprites are created anew. Until the textures are loaded, textured sprites show a
+ * placeholder and are created anew once the textures are ready. Not thread safe, use one cache per rendering thread.
+ */
+public class SpriteCache {
+	/** Number of pre-rotated images per full turn of rotating sprites */
+	public static final int ROTATION_STEPS = 64;
+
+	/** When this many sprites exist, all are dropped to make room, e.g. for shrinking players */
+	private static final int SPRITES_MAX = 512;
+	/** Slots of the hash table of sprites, power of two and kept at most half full */
+	private static final int SLOT_COUNT = 2 * SPRITES_MAX;
+
+	/** Size limit of sprites in pixels, larger entities are drawn at this size */
+	private static final int SIZE_MAX = 0x7FFF;
+
+	private static final long KEY_TEXTURE_FLAG = 1L << 56;
+
+	private static final Color REVERSED_OVERLAY_COLOR = new Color(1.0f, 0.0f, 0.0f, 0.5f);
+	private static final Color CLEAR_COLOR = new Color(0, 0, 0, 0);
+	private static final Color PLACEHOLDER_COLOR = new Color(255, 255, 255, 60);
+
+	private final TextureAtlas textures;
+	/** If the sprites were rendered with textures or with placeholders */
+	private boolean texturesReady;
+
+	private GraphicsConfiguration config;
+
+	// Open addressing hash table from keys to sprites, a slot is free if its image is null
+	private final long[] keys = new long[SLOT_COUNT];
+	private final VolatileImage[] images = new VolatileImage[SLOT_COUNT];
+	private final boolean[] contentsLost = new boolean[SLOT_COUNT];
+	private int spriteCount;
+
+	/**
+	 * @param textures source textures indexed like the TEX_INDEX of entities, may still be loading
+	 */
+	public SpriteCache(TextureAtlas textures) {
+		this.textures = textures;
+	}
+
+	/**
+	 * Draws a filled circle, or ellipse if width and height differ, centered on the given point.
+	 */
+	public void drawCircle(Graphics2D g, Color color, float width, float height, float centerX, float centerY) {
+		long key = ((long) (color.getRGB() & 0xFFFFFF) << 32) | sizeKey(width, height);
+		draw(g, key, centerX, centerY);
+	}
+
+	/**
+	 * Draws a texture scaled to the given size, centered on the given point.
+	 *
+	 * @param reversed true to tint the texture like a time reversed entity
+	 */
+	public void drawTexture(Graphics2D g, int texIdx, float width, float height, boolean reversed, float centerX, float centerY) {
+		draw(g, textureKey(texIdx, 0, reversed) | sizeKey(width, height), centerX, centerY);
+	}
+
+	/**
+	 * Draws a texture scaled to the given size and rotated counter-clockwise in world space by approximately the
+	 * given angle, centered on the given point.
+	 */
+	public void drawRotatedTexture(Graphics2D g, int texIdx, float width, float height, double angle, boolean reversed, float centerX, float centerY) {
+		double turns = angle / (2 * Math.PI);
+		turns -= Math.floor(turns);
+		int step = 1 + ((int) (turns * ROTATION_STEPS) % ROTATION_STEPS);
+
+		draw(g, textureKey(texIdx, step, reversed) | sizeKey(width, height), centerX, centerY);
+	}
+
+	/**
+	 * Releases all sprites, they are created again when next drawn.
+	 */
+	public void flush() {
+		for(int slot = 0; slot < SLOT_COUNT; ++slot) {
+			if(images[slot] != null) {
+				images[slot].flush();
+			}
+		}
+
+		Arrays.fill(images, null);
+		Arrays.fill(contentsLost, false);
+		spriteCount = 0;
+	}
+
+	/**
+	 * Texture keys are flagged so they never collide with circles, which store their RGB in the same bits.
+	 *
+	 * @param step rotation step starting at 1, or 0 for sprites that do not rotate
+	 */
+	private static long textureKey(int texIdx, int step, boolean reversed) {
+		return KEY_TEXTURE_FLAG | ((long) texIdx << 40) | ((long) step << 33) | (reversed ? (1L << 32) : 0L);
+	}
+
+	private static long sizeKey(float width, float height) {
+		return (toPixels(width) << 16) | toPixels(height);
+	}
+
+	private static long toPixels(float size) {
+		return Math.min(Math.max(Math.round(size), 1), SIZE_MAX);
+	}
+
+	private void draw(Graphics2D g, long key, float centerX, float centerY) {
+		if(!texturesReady && textures.isReady()) {
+			// Replace the placeholders
+			flush();
+			texturesReady = true;
+		}
+
+		GraphicsConfiguration gc = g.getDeviceConfiguration();
+		if(gc != config) {
+			// Images of another device cannot be accelerated on this one
+			flush();
+			config = gc;
+		}
+
+		int slot = findSlot(key);
+		VolatileImage image = images[slot];
+
+		if(image == null) {
+			if(spriteCount == SPRITES_MAX) {
+				flush();
+				slot = findSlot(key);
+			}
+
+			image = createSprite(key);
+			keys[slot] = key;
+			images[slot] = image;
+			++spriteCount;
+		} else {
+			int status = image.validate(config);
+
+			if(status == VolatileImage.IMAGE_INCOMPATIBLE) {
+				image.flush();
+				image = createSprite(key);
+				images[slot] = image;
+			} else if(status == VolatileImage.IMAGE_RESTORED || contentsLost[slot]) {
+				renderSprite(image, key);
+			}
+		}
+
+		g.drawImage(image, Math.round(centerX - 0.5f * image.getWidth()), Math.round(centerY - 0.5f * image.getHeight()), null);
+
+		// Render again on next use if the contents went away while drawing
+		contentsLost[slot] = image.contentsLost();
+	}
+
+	private int findSlot(long key) {
+		long hash = key * 0x9E3779B97F4A7C15L;
+		int slot = (int) (hash >>> 32) & (SLOT_COUNT - 1);
+
+		while(images[slot] != null && keys[slot] != key) {
+			slot = (slot + 1) & (SLOT_COUNT - 1);
+		}
+
+		return slot;
+	}
+
+	private VolatileImage createSprite(long key) {
+		int width = (int) ((key >>> 16) & 0xFFFF);
+		int height = (int) (key & 0xFFFF);
+
+		if(isRotating(key)) {
+			// Leave room for the corners of the texture in every rotation
+			width = height = (int) Math.ceil(Math.sqrt(width * width + height * height));
+		}
+
+		VolatileImage image = config.createCompatibleVolatileImage(width, height, Transparency.TRANSLUCENT);
+		image.validate(config);
+		renderSprite(image, key);
+
+		return image;
+	}
+
+	private static boolean isRotating(long key) {
+		return (key & KEY_TEXTURE_FLAG) != 0 && ((key >>> 33) & 0x7F) != 0;
+	}
+
+	private void renderSprite(VolatileImage image, long key) {
+		int width = (int) ((key >>> 16) & 0xFFFF);
+		int height = (int) (key & 0xFFFF);
+
+		Graphics2D g = image.createGraphics();
+
+		g.setComposite(AlphaComposite.Src);
+		g.setColor(CLEAR_COLOR);
+		g.fillRect(0, 0, image.getWidth(), image.getHeight());
+		g.setComposite(AlphaComposite.SrcOver);
+
+		g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+
+		g.translate(0.5 * image.getWidth(), 0.5 * image.getHeight());
+
+		Ellipse2D.Float outline = new Ellipse2D.Float(-0.5f * width, -0.5f * height, width, height);
+
+		if((key & KEY_TEXTURE_FLAG) != 0) {
+			int texIdx = (int) ((key >>> 40) & 0xFFFF);
+			int step = (int) ((key >>> 33) & 0x7F);
+			boolean reversed = ((key >>> 32) & 1) != 0;
+
+			if(step != 0) {
+				// World is y-up, so counter-clockwise in the world is clockwise on screen
+				g.rotate(-2 * Math.PI * (step - 1) / ROTATION_STEPS);
+			}
+
+			if(texturesReady) {
+				textures.draw(g, texIdx, -width / 2, -height / 2, width, height);
+			} else {
+				g.setColor(PLACEHOLDER_COLOR);
+				g.fill(outline);
+			}
+
+			if(reversed) {
+				g.setColor(REVERSED_OVERLAY_COLOR);
+				g.fill(outline);
+			}
+		} else {
+			g.setColor(new Color((int) (key >>> 32) & 0xFFFFFF));
+			g.fill(outline);
+		}
+
+		g.dispose();
+	}
+}
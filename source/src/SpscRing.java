@@ -0,0 +1,84 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded queue for exactly one producing and one consuming thread, which never blocks or locks.
+ *
+ * Elements are kept in a ring of slots. Each side only advances its own counter and only reads the counter of
+ * the other side, publishing with an ordered store, so there is no contention and no allocation.
+ *
+ * @param <E> type of the elements, null is not allowed
+ */
+public class SpscRing<E> {
+	private final Object[] elements;
+	private final int mask;
+
+	/** Count of elements ever offered, only changed by the producer */
+	private final AtomicLong written = new AtomicLong();
+	/** Count of elements ever polled, only changed by the consumer */
+	private final AtomicLong read = new AtomicLong();
+
+	/**
+	 * @param capacity maximum amount of elements in the ring, rounded up to a power of two
+	 */
+	public SpscRing(int capacity) {
+		int slots = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+
+		this.elements = new Object[slots];
+		this.mask = slots - 1;
+	}
+
+	/**
+	 * Only to be called by the producer.
+	 *
+	 * @return false if the ring was full and the element was not added
+	 */
+	public boolean offer(E element) {
+		long w = written.get();
+		if(w - read.get() == elements.length) {
+			return false;
+		}
+
+		elements[(int) (w & mask)] = element;
+		// Publishes the element to the consumer
+		written.lazySet(w + 1);
+		return true;
+	}
+
+	/**
+	 * Only to be called by the consumer.
+	 *
+	 * @return oldest element, or null if empty
+	 */
+	public E poll() {
+		long r = read.get();
+		if(r == written.get()) {
+			return null;
+		}
+
+		int idx = (int) (r & mask);
+		@SuppressWarnings("unchecked")
+		E element = (E) elements[idx];
+		// Do not keep the element alive
+		elements[idx] = null;
+
+		// Slot may be written again from now on
+		read.lazySet(r + 1);
+		return element;
+	}
+
+	/**
+	 * Only to be called by the consumer.
+	 *
+	 * @return oldest element without removing it, or null if empty
+	 */
+	public E peek() {
+		long r = read.get();
+		if(r == written.get()) {
+			return null;
+		}
+
+		@SuppressWarnings("unchecked")
+		E element = (E) elements[(int) (r & mask)];
+		return element;
+	}
+}
@@ -0,0 +1,120 @@
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsEnvironment;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+/**
+ * All textures packed side by side into a single image in the pixel format of the screen.
+ *
+ * Decoding the textures is slow, so it happens on a background thread. Until that is finished, the atlas is
+ * not ready and textures cannot be drawn yet, callers should draw a placeholder instead.
+ */
+public class TextureAtlas {
+	/** Transparent pixels between textures, so interpolation at the edges does not pick up the neighbours */
+	private static final int PADDING = 2;
+
+	private final String[] resources;
+
+	// Where each texture is in the atlas, indexed like the resources
+	private final int[] regionX;
+	private final int[] regionWidths;
+	private final int[] regionHeights;
+
+	/** Set once all textures are packed, null until then */
+	private volatile BufferedImage image;
+
+	/**
+	 * Starts loading textures from the classpath in the background.
+	 *
+	 * @param resources paths of the textures, indexed like the TEX_INDEX of entities, may contain null for unused indexes
+	 * @return atlas that becomes ready once all textures are loaded
+	 */
+	public static TextureAtlas loadAsync(String... resources) {
+		TextureAtlas atlas = new TextureAtlas(resources);
+
+		Thread loader = new Thread(atlas::load, "texture-loader");
+		loader.setDaemon(true);
+		loader.start();
+
+		return atlas;
+	}
+
+	private TextureAtlas(String[] resources) {
+		this.resources = resources;
+		this.regionX = new int[resources.length];
+		this.regionWidths = new int[resources.length];
+		this.regionHeights = new int[resources.length];
+	}
+
+	private void load() {
+		try {
+			BufferedImage[] textures = new BufferedImage[resources.length];
+			int width = 0;
+			int height = 0;
+
+			for(int i = 0; i < resources.length; ++i) {
+				if(resources[i] != null) {
+					textures[i] = ImageIO.read(TextureAtlas.class.getResource(resources[i]));
+
+					regionX[i] = width;
+					regionWidths[i] = textures[i].getWidth();
+					regionHeights[i] = textures[i].getHeight();
+
+					width += textures[i].getWidth() + PADDING;
+					height = Math.max(height, textures[i].getHeight());
+				}
+			}
+
+			BufferedImage atlasImage = createCompatibleImage(Math.max(width, 1), Math.max(height, 1));
+			Graphics2D g = atlasImage.createGraphics();
+
+			for(int i = 0; i < resources.length; ++i) {
+				if(textures[i] != null) {
+					g.drawImage(textures[i], regionX[i], 0, null);
+				}
+			}
+
+			g.dispose();
+
+			// Publishes the regions along with the image
+			image = atlasImage;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Creates an image that can be drawn to the screen without conversion, or a plain premultiplied image
+	 * if there is no screen.
+	 */
+	private static BufferedImage createCompatibleImage(int width, int height) {
+		if(GraphicsEnvironment.isHeadless()) {
+			return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+		}
+
+		GraphicsConfiguration config = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration();
+		return config.createCompatibleImage(width, height, Transparency.TRANSLUCENT);
+	}
+
+	/**
+	 * @return true if all textures are loaded and can be drawn
+	 */
+	public boolean isReady() {
+		return image != null;
+	}
+
+	/**
+	 * Draws a texture scaled into the given rectangle. Must only be called once the atlas is ready.
+	 *
+	 * @param texIdx index of the texture, as in the resources the atlas was loaded from
+	 */
+	public void draw(Graphics2D g, int texIdx, int x, int y, int width, int height) {
+		int srcX = regionX[texIdx];
+
+		g.drawImage(image, x, y, x + width, y + height, srcX, 0, srcX + regionWidths[texIdx], regionHeights[texIdx], null);
+	}
+}
@@ -0,0 +1,50 @@
+/**
+ * Limits how often something may happen on average, while allowing short bursts.
+ *
+ * The bucket holds up to a fixed amount of tokens and refills at a constant rate. Every event takes
+ * a token and events finding the bucket empty should be dropped. Not thread safe, each bucket must
+ * only be used by a single thread.
+ */
+public class TokenBucket {
+	private final double tokensPerNano;
+	private final double capacity;
+
+	private double tokens;
+	private long lastRefillTime;
+
+	/**
+	 * Creates a full bucket.
+	 *
+	 * @param tokensPerSecond average events per second allowed
+	 * @param capacity events allowed in a burst
+	 */
+	public TokenBucket(double tokensPerSecond, double capacity) {
+		this.tokensPerNano = tokensPerSecond / 1_000_000_000.0;
+		this.capacity = capacity;
+		this.tokens = capacity;
+		this.lastRefillTime = System.nanoTime();
+	}
+
+	/**
+	 * @param now current time from {@link System#nanoTime()}
+	 * @return true if a token was taken and the event may happen, false if it should be dropped
+	 */
+	public boolean tryTake(long now) {
+		tokens = Math.min(capacity, tokens + (now - lastRefillTime) * tokensPerNano);
+		lastRefillTime = now;
+
+		if(tokens < 1.0) {
+			return false;
+		}
+
+		tokens -= 1.0;
+		return true;
+	}
+
+	/**
+	 * Gives back a token taken by {@link #tryTake(long)}, for events that turned out to be limited elsewhere.
+	 */
+	public void refund() {
+		tokens = Math.min(capacity, tokens + 1.0);
+	}
+}
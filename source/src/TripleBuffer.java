@@ -0,0 +1,81 @@
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands the newest of a series of values from one producing thread to one consuming thread without locks.
+ *
+ * Of three buffers, the producer fills one, the consumer reads another and the third holds the value published
+ * last. Publishing and acquiring only swap buffers, so neither thread ever waits for the other, and values the
+ * consumer was too slow for are skipped. The buffers are reused, so handing over values does not allocate.
+ *
+ * @param <T> mutable value that the producer overwrites in place
+ */
+public class TripleBuffer<T> {
+	private static class Buffer<T> {
+		final T value;
+		/** True if published and not acquired yet */
+		boolean fresh;
+
+		Buffer(T value) {
+			this.value = value;
+		}
+	}
+
+	private Buffer<T> back;
+	private final AtomicReference<Buffer<T>> middle;
+	private Buffer<T> front;
+
+	/**
+	 * @param first initially read by the consumer until something is published
+	 * @param second
+	 * @param third
+	 */
+	public TripleBuffer(T first, T second, T third) {
+		front = new Buffer<>(first);
+		middle = new AtomicReference<>(new Buffer<>(second));
+		back = new Buffer<>(third);
+	}
+
+	/**
+	 * Only to be called by the producer.
+	 *
+	 * @return value to be filled before the next {@link #publish()}, may contain anything
+	 */
+	public T getBack() {
+		return back.value;
+	}
+
+	/**
+	 * Only to be called by the producer. Makes the back value the newest one, replacing a newest value the
+	 * consumer did not acquire yet. The producer gets another value to fill afterwards.
+	 */
+	public void publish() {
+		back.fresh = true;
+		back = middle.getAndSet(back);
+	}
+
+	/**
+	 * Only to be called by the consumer. Makes the newest published value the front value, if there is one
+	 * newer than the current front value.
+	 *
+	 * @return true if the front value changed
+	 */
+	public boolean acquire() {
+		// Only the producer can change the middle, and only to another fresh buffer
+		if(!middle.get().fresh) {
+			return false;
+		}
+
+		front = middle.getAndSet(front);
+		front.fresh = false;
+		return true;
+	}
+
+	/**
+	 * Only to be called by the consumer.
+	 *
+	 * @return value acquired last, must not be modified
+	 */
+	public T getFront() {
+		return front.value;
+	}
+}
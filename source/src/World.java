@@ -1,15 +1,14 @@
 
-import java.awt.Color;
-import java.awt.Font;
-import java.awt.FontMetrics;
-import java.awt.Graphics2D;
-import java.awt.geom.AffineTransform;
-import java.awt.image.BufferedImage;
-import java.io.IOException;
 import java.util.Arrays;
 
-import javax.imageio.ImageIO;
-
+/**
+ * State and rules of the game as simulated by the server, including the history of past frames
+ * needed for time reversal. Clients see the world through a {@link ClientWorld} with the same
+ * entity layout instead.
+ * 
+ * Holds no references to AWT or images, so a dedicated server never loads them,
+ * drawing is up to {@link WorldRenderer}.
+ */
 public class World {
 	public static final float GAME_DURATION =  2 * 60.0f;
 	public static final float PREPARE_TIME = 10.0f;
@@ -55,13 +54,10 @@ public class World {
 	private static final int KIND_SIZE = 1;
 	private static final int TEX_INDEX_SIZE = 1;
 	private static final int LIFETIME_SIZE = 1;
-	private static final int ENTITY_SIZE = POSITION_SIZE + VELOCITY_SIZE + COLOR_SIZE + DIMENSION_SIZE + IN_USE_SIZE + REVERSED_SIZE + COLLISION_ENABLED_SIZE + KIND_SIZE + TEX_INDEX_SIZE + LIFETIME_SIZE;
+	public static final int ENTITY_SIZE = POSITION_SIZE + VELOCITY_SIZE + COLOR_SIZE + DIMENSION_SIZE + IN_USE_SIZE + REVERSED_SIZE + COLLISION_ENABLED_SIZE + KIND_SIZE + TEX_INDEX_SIZE + LIFETIME_SIZE;
 	
-	private static final int ENTITY_COUNT_MAX = 512;
+	public static final int ENTITY_COUNT_MAX = 512;
 	private static final int PAST_FRAMES_MAX = 500;
-	private static final int PARTICLE_COUNT_MAX = 512;
-	private static final float PARTICLE_SPAWN_INTERVAL = 0.01f;
-	private static final float PARTICLE_SPREAD = 3.5f;
 	
 	/** Amount of stars at least in the game world, if drops below that, will spawn */
 	private static final int MINIMUM_STAR_COUNT = 60;
@@ -76,185 +72,225 @@ public class World {
 	private static final float DRAIN_FACTOR = 0.2f;
 //	private static final float DRAIN_STAR_LIFETIME = 2.0f;
 	
-	// The world is four times the area of the window, that is a rectangle with double sidelengths
-	private static final float MAX_POSITION_X = Shell.WIDTH;
-	private static final float MIN_POSITION_X = -MAX_POSITION_X;
-	private static final float MAX_POSITION_Y = Shell.HEIGHT;
-	private static final float MIN_POSITION_Y = -MAX_POSITION_Y;
+	/** Seconds a player's time arrow is reversed after being hit by a bullet */
+	public static final float BULLET_HIT_REVERSE_DURATION = 2.0f;
+	/** Shots are rewound at most this many seconds, views of slower clients are treated as this old */
+	public static final float MAX_LAG_COMPENSATION = 0.5f;
 	
-	private static final BufferedImage[] textures;
-	private static double angle = 0;
+	/** Size of the portion of the world visible at once in world units, which are pixels on the client */
+	public static final int VIEW_WIDTH = 800;
+	public static final int VIEW_HEIGHT = 600;
 	
-	static {
-		BufferedImage[] texturesToSave = null;
-		try {
-			texturesToSave = new BufferedImage[] {
-				null,
-				ImageIO.read(World.class.getResource("/resources/earth.png")),
-				ImageIO.read(World.class.getResource("/resources/moon_small.png")),
-				ImageIO.read(World.class.getResource("/resources/black_hole_soak.png"))
-			
-			};
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		
-		textures = texturesToSave;
-				
-	}
+	// The world is four times the area of the window, that is a rectangle with double sidelengths
+	static final float MAX_POSITION_X = VIEW_WIDTH;
+	static final float MIN_POSITION_X = -MAX_POSITION_X;
+	static final float MAX_POSITION_Y = VIEW_HEIGHT;
+	static final float MIN_POSITION_Y = -MAX_POSITION_Y;
 	
 	public float[] entities = new float[ENTITY_SIZE * ENTITY_COUNT_MAX * PAST_FRAMES_MAX];
-	public float[] particles = new float[ENTITY_SIZE * PARTICLE_COUNT_MAX];
-	public int localPlayerID = -1;
 	
 	private float remainingGameDuration = GAME_DURATION + PREPARE_TIME;
+	/** Remaining game duration at the time of each frame in entities, only kept on the server */
+	private float[] pastFrameRemainingDurations = new float[PAST_FRAMES_MAX];
 	
 	/** Names of all logged in users, sorted by score descending */
 	private String[] usernames = new String[0];
 	private int[] userIDs = new int[0];
 	private int[] scores = new int[0];
+	/** Sequence number of the last steering input the server applied for each user, only kept on the server */
+	private int[] acknowledgedInputs = new int[0];
 	/**
 	 * Holds time in seconds of staying inside a black hole until the next lifepoint is drained,
 	 * not synced to the client world.
 	 */
 	private float[] drainTimeouts = new float[0];
+	/** Scores as last sent in a roster-score event, only kept on the server */
+	private int[] reportedScores = new int[0];
 	
-	private float nextParticleSpawnWaitTime;
 	
 	/**
-	 * Called from the server to serialize everything that a client could possible draw
+	 * Called from the server to serialize the state of all entities, which changes every tick.
+	 * 
+	 * Usernames and scores change rarely, so they are not part of this, but sent as events instead,
+	 * see {@link #getRosterDTOs()}.
 	 * 
 	 * @return a DTO to send to the client
 	 */
 	public UniversalDTO getFullStateUpdateDTO() {
+		// The first float is the number of players
+		float[] data = new float[1 + 2 * userIDs.length + 1 + ENTITY_SIZE * ENTITY_COUNT_MAX];
+		data[0] = userIDs.length;
 		
-		// Abusing username field to store a \0 separated list of all usernames
-		StringBuilder joinedUsernames = new StringBuilder();
-		if(usernames.length > 0) {
-			joinedUsernames.append(usernames[0]);
-			for(int i = 1; i < usernames.length; ++i) {
-				joinedUsernames.append("\0"); // Separate by triple pipes
-				joinedUsernames.append(usernames[i]);
-			}
-		}
-		
-		// The first few floats are the scores corresponding to the usernames
-		float[] data = new float[usernames.length + usernames.length + 1 + ENTITY_SIZE * ENTITY_COUNT_MAX];
-		for(int i = 0; i < scores.length; ++i) {
-			data[i] = scores[i];
-		}
-		
-		// Next few are the IDs corresponding to the user names
-		for(int i = 0; i < scores.length; ++i) {
-			data[scores.length + i] = userIDs[i];
+		// Then pairs of player IDs and the sequence numbers of their last applied steering inputs,
+		// used by clients to reconcile predictions
+		for(int i = 0; i < userIDs.length; ++i) {
+			data[1 + 2 * i] = userIDs[i];
+			data[1 + 2 * i + 1] = acknowledgedInputs[i];
 		}
 		
 		// Then, the remaining game time in seconds
-		data[scores.length + scores.length + 0] = remainingGameDuration;
+		data[1 + 2 * userIDs.length] = remainingGameDuration;
 		
 		// Then comes the actual world data
-		System.arraycopy(entities, 0, data, scores.length + scores.length + 1, ENTITY_SIZE * ENTITY_COUNT_MAX);
+		System.arraycopy(entities, 0, data, 1 + 2 * userIDs.length + 1, ENTITY_SIZE * ENTITY_COUNT_MAX);
 		
-		return new UniversalDTO(-1, joinedUsernames.toString(), "update-full", data);
+		return new UniversalDTO(-1, "", "update-full", data);
 	}
 	
 	/**
-	 * Called by the client with data from the server to work server updates into the world.
+	 * Called from the server to tell a client that just joined about all players.
 	 * 
-	 * @param dto
+	 * @return a roster-join DTO for every player
 	 */
-	public void handleDTO(UniversalDTO dto) {
-		if(dto.getEvent().equals("update-full")) {
-			float[] data = dto.getData();
-			
-			usernames = dto.getUsername().split("\0");
-			
-			// First few floats are the scores
-			scores = new int[usernames.length];
-			for(int i = 0; i < usernames.length; ++i) {
-				scores[i] = Math.round(data[i]);
+	public UniversalDTO[] getRosterDTOs() {
+		UniversalDTO[] joins = new UniversalDTO[userIDs.length];
+		
+		for(int i = 0; i < userIDs.length; ++i) {
+			joins[i] = new UniversalDTO(-1, usernames[i], "roster-join", new float[] { userIDs[i], scores[i] });
+		}
+		
+		return joins;
+	}
+	
+	/**
+	 * @param id entity ID of a player that was just added
+	 * @return DTO to tell clients about the new player
+	 */
+	public UniversalDTO getPlayerJoinDTO(int id) {
+		int idx = playerIDToRosterIdx(id);
+		return new UniversalDTO(-1, usernames[idx], "roster-join", new float[] { id, scores[idx] });
+	}
+	
+	/**
+	 * @param id entity ID of a player that was just removed
+	 * @return DTO to tell clients the player is gone
+	 */
+	public static UniversalDTO getPlayerLeaveDTO(int id) {
+		return new UniversalDTO(-1, "", "roster-leave", new float[] { id });
+	}
+	
+	/**
+	 * Called from the server after each tick to collect the scores that changed since the last call.
+	 * 
+	 * @return DTO with pairs of player ID and new score, or null if no score changed
+	 */
+	public UniversalDTO getScoreUpdateDTO() {
+		int changedCount = 0;
+		for(int i = 0; i < scores.length; ++i) {
+			if(scores[i] != reportedScores[i]) {
+				++changedCount;
 			}
-			
-			// Next few floats are the corresponding player entity IDs
-			userIDs = new int[usernames.length];
-			for(int i = 0; i < usernames.length; ++i) {
-				userIDs[i] = Math.round(data[usernames.length + i]);
+		}
+		
+		if(changedCount == 0) {
+			return null;
+		}
+		
+		float[] data = new float[2 * changedCount];
+		int dataIdx = 0;
+		for(int i = 0; i < scores.length; ++i) {
+			if(scores[i] != reportedScores[i]) {
+				data[dataIdx++] = userIDs[i];
+				data[dataIdx++] = scores[i];
+				reportedScores[i] = scores[i];
 			}
-			
-			// Then remaining game time
-			remainingGameDuration = data[scores.length + scores.length];
-			
-			System.arraycopy(data, scores.length+scores.length+1, entities, 0, ENTITY_SIZE * ENTITY_COUNT_MAX);
-		} else if(dto.getEvent().equals("join-acknowledge")) {
-			localPlayerID = (int) dto.getData()[0];
-			System.out.println("Server acknowledged this player joining and assigned UID: " + localPlayerID);
 		}
+		
+		return new UniversalDTO(-1, "", "roster-score", data);
 	}
-
+	
 	public int addPlayer(String name) {
 		int id = addEntity();
 		
+		addToRoster(name, id, 0);
+		
+		return id;
+	}
+	
+	public void removePlayer(int id) {
+		int idx = playerIDToRosterIdx(id);
+		
+		if(idx != -1) {
+			removeFromRoster(idx);
+			
+			removeEntity(id);
+		} else {
+			throw new RuntimeException("Tried to remove player with id " + id + " but found no corresponding name and score");
+		}
+	}
+	
+	private int playerIDToRosterIdx(int id) {
+		for(int i = 0; i < userIDs.length; ++i) {
+			if(userIDs[i] == id) {
+				return i;
+			}
+		}
+		
+		return -1;
+	}
+	
+	private void addToRoster(String name, int id, int score) {
 		String[] newUsernames = new String[usernames.length + 1];
 		int[] newUserIds = new int[usernames.length + 1];
 		int[] newScores = new int[usernames.length + 1];
+		int[] newAcknowledgedInputs = new int[usernames.length + 1];
 		float[] newDrainTimeouts = new float[usernames.length + 1];
+		int[] newReportedScores = new int[usernames.length + 1];
 		
 		newUsernames[0] = name;
 		newUserIds[0] = id;
-		newScores[0] = 0;
+		newScores[0] = score;
+		newAcknowledgedInputs[0] = 0;
 		newDrainTimeouts[0] = DRAIN_INTERVAL;
+		newReportedScores[0] = score;
 		
 		System.arraycopy(usernames, 0, newUsernames, 1, usernames.length);
 		System.arraycopy(userIDs, 0, newUserIds, 1, usernames.length);
 		System.arraycopy(scores, 0, newScores, 1, usernames.length);
+		System.arraycopy(acknowledgedInputs, 0, newAcknowledgedInputs, 1, usernames.length);
 		System.arraycopy(drainTimeouts, 0, newDrainTimeouts, 1, usernames.length);
+		System.arraycopy(reportedScores, 0, newReportedScores, 1, usernames.length);
 		
 		usernames = newUsernames;
 		userIDs = newUserIds;
 		scores = newScores;
+		acknowledgedInputs = newAcknowledgedInputs;
 		drainTimeouts = newDrainTimeouts;
-		
-		return id;
+		reportedScores = newReportedScores;
 	}
 	
-	public void removePlayer(int id) {
-		int idx = -1;
+	private void removeFromRoster(int idx) {
+		String[] newUsernames = new String[usernames.length - 1];
+		int[] newUserIds = new int[usernames.length - 1];
+		int[] newScores = new int[usernames.length - 1];
+		int[] newAcknowledgedInputs = new int[usernames.length - 1];
+		float[] newDrainTimeouts = new float[usernames.length - 1];
+		int[] newReportedScores = new int[usernames.length - 1];
 		
-		for(int i = 0; i < userIDs.length; ++i) {
-			if(userIDs[i] == id) {
-				idx = i;
-				break;
-			}
-		}
+		System.arraycopy(scores, 0, newScores, 0, idx);
+		System.arraycopy(scores, idx+1, newScores, idx, newScores.length - idx);
 		
-		if(idx != -1) {
-			String[] newUsernames = new String[usernames.length - 1];
-			int[] newUserIds = new int[usernames.length - 1];
-			int[] newScores = new int[usernames.length - 1];
-			float[] newDrainTimeouts = new float[usernames.length - 1];
-			
-			System.arraycopy(scores, 0, newScores, 0, idx);
-			System.arraycopy(scores, idx+1, newScores, idx, newScores.length - idx);
-			
-			System.arraycopy(userIDs, 0, newUserIds, 0, idx);
-			System.arraycopy(userIDs, idx+1, newUserIds, idx, newScores.length - idx);
-			
-			System.arraycopy(usernames, 0, newUsernames, 0, idx);
-			System.arraycopy(usernames, idx+1, newUsernames, idx, newScores.length - idx);
-			
-			System.arraycopy(drainTimeouts, 0, newDrainTimeouts, 0, idx);
-			System.arraycopy(drainTimeouts, idx+1, newDrainTimeouts, idx, newScores.length - idx);
-			
-			scores = newScores;
-			userIDs = newUserIds;
-			usernames = newUsernames;
-			drainTimeouts = newDrainTimeouts;
-			
-			removeEntity(id);
-		} else {
-			throw new RuntimeException("Tried to remove player with id " + id + " but found no corresponding name and score");
-		}
+		System.arraycopy(userIDs, 0, newUserIds, 0, idx);
+		System.arraycopy(userIDs, idx+1, newUserIds, idx, newScores.length - idx);
+		
+		System.arraycopy(usernames, 0, newUsernames, 0, idx);
+		System.arraycopy(usernames, idx+1, newUsernames, idx, newScores.length - idx);
+		
+		System.arraycopy(acknowledgedInputs, 0, newAcknowledgedInputs, 0, idx);
+		System.arraycopy(acknowledgedInputs, idx+1, newAcknowledgedInputs, idx, newScores.length - idx);
+		
+		System.arraycopy(drainTimeouts, 0, newDrainTimeouts, 0, idx);
+		System.arraycopy(drainTimeouts, idx+1, newDrainTimeouts, idx, newScores.length - idx);
+		
+		System.arraycopy(reportedScores, 0, newReportedScores, 0, idx);
+		System.arraycopy(reportedScores, idx+1, newReportedScores, idx, newScores.length - idx);
+		
+		scores = newScores;
+		acknowledgedInputs = newAcknowledgedInputs;
+		userIDs = newUserIds;
+		usernames = newUsernames;
+		drainTimeouts = newDrainTimeouts;
+		reportedScores = newReportedScores;
 	}
 	
 	public int addEntity() {
@@ -306,6 +342,8 @@ public class World {
 			
 			// Archive the old frame
 			System.arraycopy(entities, 0, entities, ENTITY_COUNT_MAX*ENTITY_SIZE, entities.length - (ENTITY_COUNT_MAX*ENTITY_SIZE));
+			pastFrameRemainingDurations[0] = remainingGameDuration;
+			System.arraycopy(pastFrameRemainingDurations, 0, pastFrameRemainingDurations, 1, PAST_FRAMES_MAX - 1);
 		}
 	}
 
@@ -321,35 +359,6 @@ public class World {
 		}
 	}
 
-	private void updateParticles(float dt) {
-		if(nextParticleSpawnWaitTime <= 0) {
-			nextParticleSpawnWaitTime += PARTICLE_SPAWN_INTERVAL;
-
-			for(int clientID: userIDs) {
-				float clientPosX = get(clientID, World.POSITION_X);
-				float clientPosY = get(clientID, World.POSITION_Y);
-
-				for (int i = 0; i < 7; i++) {
-					float yMod = (i - 3) * PARTICLE_SPREAD;
-					int iterations = 7 - (2 * Math.abs(i - 3));
-					for (int j = 0; j < iterations; j++) {
-						float xMod = (j - (iterations - 1) / 2) * PARTICLE_SPREAD;
-						int anyParticleID = (int) (Math.random() * PARTICLE_COUNT_MAX);
-						particles[anyParticleID * ENTITY_SIZE + World.POSITION_X] = clientPosX + xMod;
-						particles[anyParticleID * ENTITY_SIZE + World.POSITION_Y] = clientPosY + yMod;
-						particles[anyParticleID * ENTITY_SIZE + World.DIMENSION_X] = 2.0f;
-						particles[anyParticleID * ENTITY_SIZE + World.DIMENSION_Y] = 2.0f;
-						particles[anyParticleID * ENTITY_SIZE + World.COLOR_R] = 1.0f;
-						particles[anyParticleID * ENTITY_SIZE + World.COLOR_G] = 1.0f;
-						particles[anyParticleID * ENTITY_SIZE + World.COLOR_B] = 1.0f;
-					}
-				}
-			}
-		} else {
-			nextParticleSpawnWaitTime -= dt;
-		}
-	}
-
 	private void sortScores() {
 		// good ol' selection sort in bad but good enough for 5 elements O(n2)
 		for(int i = 0; i < scores.length; ++i) {
@@ -377,9 +386,17 @@ public class World {
 			userIDs[i] = userIDs[maxIdx];
 			userIDs[maxIdx] = swapI;
 			
+			swapI = acknowledgedInputs[i];
+			acknowledgedInputs[i] = acknowledgedInputs[maxIdx];
+			acknowledgedInputs[maxIdx] = swapI;
+			
 			swapF = drainTimeouts[i];
 			drainTimeouts[i] = drainTimeouts[maxIdx];
 			drainTimeouts[maxIdx] = swapF;
+			
+			swapI = reportedScores[i];
+			reportedScores[i] = reportedScores[maxIdx];
+			reportedScores[maxIdx] = swapI;
 		}
 	}
 
@@ -400,8 +417,8 @@ public class World {
 		int star = addEntity();
 		
 		float diameter = (float) (10.0 * Math.min(Math.random() + 0.2, 1.0));
-		float x = (float) ((Math.random() - 0.5) * Shell.WIDTH * 2);
-		float y = (float) ((Math.random() - 0.5) * Shell.HEIGHT * 2);
+		float x = (float) ((Math.random() - 0.5) * VIEW_WIDTH * 2);
+		float y = (float) ((Math.random() - 0.5) * VIEW_HEIGHT * 2);
 		
 		set(star, World.DIMENSION_X, diameter);
 		set(star, World.DIMENSION_Y, diameter);
@@ -462,7 +479,7 @@ public class World {
 						float squaredDistance = distanceX * distanceX + distanceY * distanceY;
 						
 						if(squaredDistance <= squaredRadiusSum) {
-							respondToCollision(ent1Offset, ent2Offset);
+							respondToCollision(ent1Offset, ent2Offset, dt);
 						}
 					}
 				}
@@ -508,7 +525,7 @@ public class World {
 		}
 	}
 
-	private void respondToCollision(int offset0, int offset1) {
+	private void respondToCollision(int offset0, int offset1, float dt) {
 		float kind0 = entities[offset0 + KIND];
 		float kind1 = entities[offset1 + KIND];
 		
@@ -517,7 +534,7 @@ public class World {
 			respondToBulletColission(offset0, offset1);
 		} else if(kind0 == KIND_VAL_PLAYER || kind1 == KIND_VAL_PLAYER) {
 			// Player-to-X colission, except player-to-bullet which is handled before
-			respondToPlayerColission(offset0, offset1);
+			respondToPlayerColission(offset0, offset1, dt);
 		} else if(kind0 == KIND_VAL_TRAP || kind1 == KIND_VAL_TRAP) {
 			respondToTrapColission(offset0, offset1);
 		}
@@ -544,7 +561,7 @@ public class World {
 				// bullet to player colission, reverse the players time arrow for 2 seconds and also
 				// remove the bullet
 				entities[offset0 + IN_USE] = 0.0f;
-				entities[offset1 + REVERSED] = 2.0f;
+				entities[offset1 + REVERSED] = BULLET_HIT_REVERSE_DURATION;
 			} else if(kind1 == KIND_VAL_TRAP) {
 				//entities[offset0 + IN_USE] = 0.0f;
 				//entities[offset1 + REVERSED] = 2.0f;
@@ -555,12 +572,12 @@ public class World {
 		}
 	}
 	
-	private void respondToPlayerColission(int offset0, int offset1) {
+	private void respondToPlayerColission(int offset0, int offset1, float dt) {
 		float kind0 = entities[offset0 + KIND];
 		float kind1 = entities[offset1 + KIND];
 		
 		if(kind0 != KIND_VAL_PLAYER && kind1 == KIND_VAL_PLAYER) {
-			respondToPlayerColission(offset1, offset0);
+			respondToPlayerColission(offset1, offset0, dt);
 			return;
 		}
 		
@@ -577,7 +594,7 @@ public class World {
 
 				scores[entityOffsetToScoreIdx(offset0)] += starArea;
 			} else if(kind1 == KIND_VAL_TRAP) {
-				drainPlayer(offset0, entityOffsetToScoreIdx(offset0));
+				drainPlayer(offset0, entityOffsetToScoreIdx(offset0), dt);
 			}
 		}
 	}
@@ -659,8 +676,8 @@ public class World {
 	//		}
 		}
 
-	private void drainPlayer(int entityOffset, int scoreIdx) {
-		drainTimeouts[scoreIdx] -= Server.SERVER_UPDATE_INTERVAL;
+	private void drainPlayer(int entityOffset, int scoreIdx, float dt) {
+		drainTimeouts[scoreIdx] -= dt;
 		if(drainTimeouts[scoreIdx] <= 0) {
 			drainTimeouts[scoreIdx] = DRAIN_INTERVAL;
 			
@@ -729,7 +746,7 @@ public class World {
 					for(int i = 0; i < (PAST_FRAMES_MAX-1); ++i) {
 						System.arraycopy(entities, offset + (i+1) * LAST_FRAME_OFFSET, entities, offset + i * LAST_FRAME_OFFSET, ENTITY_SIZE);
 					}
-					timeLeftToReverse -= Server.SERVER_UPDATE_INTERVAL;
+					timeLeftToReverse -= dt;
 					
 					/*if(timeLeftToReverse <= 0.0f && isOccuppied(entities[offset + POSITION_X], entities[offset + POSITION_Y], 0.5f * entities[offset + DIMENSION_X])) {
 						// Reverse a little longer if would otherwiese re-appear inside something else
@@ -744,315 +761,102 @@ public class World {
 
 	private void integratePosition(float dt) {
 		for(int offset = 0; offset < (ENTITY_COUNT_MAX*ENTITY_SIZE); offset += ENTITY_SIZE) {
-			if(entities[offset + IN_USE] == 1.0f && entities[offset + REVERSED] == 0.0f) {
-				entities[offset + POSITION_X] += dt * entities[offset + VELOCITY_X];
-				entities[offset + POSITION_Y] += dt * entities[offset + VELOCITY_Y];
-				
-				entities[offset + POSITION_X] = Math.min(Math.max(entities[offset + POSITION_X], MIN_POSITION_X), MAX_POSITION_X);
-				entities[offset + POSITION_Y] = Math.min(Math.max(entities[offset + POSITION_Y], MIN_POSITION_Y), MAX_POSITION_Y);
-			}
+			integratePosition(entities, offset, dt);
 		}
 	}
 	
 	/**
-	 * Gets the X coordinate of the center point of the currently visible portion of the world.
-	 * @return
+	 * Moves an entity along its velocity, also used by clients to predict their player with the same rules.
 	 */
-	public float getCameraPositionX() {
-		if(localPlayerID == -1) {
-			return 0.0f;
+	static void integratePosition(float[] entities, int offset, float dt) {
+		if(entities[offset + IN_USE] == 1.0f && entities[offset + REVERSED] == 0.0f) {
+			entities[offset + POSITION_X] += dt * entities[offset + VELOCITY_X];
+			entities[offset + POSITION_Y] += dt * entities[offset + VELOCITY_Y];
+			
+			entities[offset + POSITION_X] = Math.min(Math.max(entities[offset + POSITION_X], MIN_POSITION_X), MAX_POSITION_X);
+			entities[offset + POSITION_Y] = Math.min(Math.max(entities[offset + POSITION_Y], MIN_POSITION_Y), MAX_POSITION_Y);
 		}
-		
-		float camPosXMin = MIN_POSITION_X + Shell.WIDTH / 2.0f;
-		float camPosXMax = MAX_POSITION_X - Shell.WIDTH / 2.0f;
-		float camPosX = Math.min(Math.max(get(localPlayerID, POSITION_X), camPosXMin), camPosXMax);
-		
-		return camPosX;
 	}
 	
 	/**
-	 * Gets the Y coordinate of the center point of the currently visible portion of the world.
-	 * @return
+	 * Called by the server with the time a client saw when shooting, see {@link ClientWorld#getRemainingGameDuration()}.
+	 * 
+	 * @param observedRemainingGameDuration remaining game duration in the newest snapshot the client had
+	 * @return seconds the shot is late, at most {@link #MAX_LAG_COMPENSATION}
 	 */
-	public float getCameraPositionY() {
-		if(localPlayerID == -1) {
-			return 0.0f;
-		}
-		
-		float camPosYMin = MIN_POSITION_Y + Shell.HEIGHT / 2.0f;
-		float camPosYMax = MAX_POSITION_Y - Shell.HEIGHT / 2.0f;
-		float camPosY = Math.min(Math.max(get(localPlayerID, POSITION_Y), camPosYMin), camPosYMax);
-		
-		return camPosY;
+	public float getLagSince(float observedRemainingGameDuration) {
+		return Math.min(Math.max(observedRemainingGameDuration - remainingGameDuration, 0.0f), MAX_LAG_COMPENSATION);
 	}
 	
-	public void draw(float dt, Graphics2D g) {
-		AffineTransform oldTrans = g.getTransform();
-		Color oldColor = g.getColor();
-
-		angle += dt * 1.7;
-		
-		updateParticles(dt); // Have to do this here because different threads have different worlds.
-		
-		// Set transform so that we can draw in y-up normalized device coordinates
-		g.translate(Shell.WIDTH / 2.0, Shell.HEIGHT / 2.0);
-		g.scale(1, -1);
-		
-		
-		// Set up camera transform, is zero if no local player ID defined
-		g.translate(-getCameraPositionX(), -getCameraPositionY());
-		
-		renderParticles(g);
-		renderEntitites(g);
-		
-		g.setColor(oldColor);
-		g.setTransform(oldTrans);
+	/**
+	 * Called by the server to check whether a bullet shot some time ago would already have hit a player,
+	 * as seen by the shooter. The bullet is moved through the archived frames from the time of the shot
+	 * until now and tested against the player positions of each frame, so the shooter does not miss
+	 * targets that only moved on after the shooter's view of the world was sent.
+	 * 
+	 * @param shooterID player that shot, never hit by the bullet
+	 * @param posX bullet position at the time of the shot
+	 * @param posY bullet position at the time of the shot
+	 * @param velX bullet velocity
+	 * @param velY bullet velocity
+	 * @param diameter bullet diameter
+	 * @param lag seconds since the shot, see {@link #getLagSince(float)}
+	 * @return ID of the first player hit, or -1 if the bullet hits nobody on its way to the present
+	 */
+	public int findLagCompensatedHit(int shooterID, float posX, float posY, float velX, float velY, float diameter, float lag) {
+		if(lag <= 0.0f || remainingGameDuration > GAME_DURATION || remainingGameDuration <= 0) {
+			// No delay to make up for, or no frames archived
+			return -1;
+		}
 		
-		renderHUD(g);
+		final int FRAME_SIZE = ENTITY_SIZE * ENTITY_COUNT_MAX;
+		float shotTime = remainingGameDuration + lag;
 		
-		g.setColor(oldColor);
-		g.setTransform(oldTrans);
-	}
-
-	private void renderEntitites(Graphics2D g) {
-		AffineTransform baseTrans = g.getTransform();
+		// Oldest archived frame not older than the shot, frame 0 is the present and left to the simulation
+		int shotFrame = 1;
+		while(shotFrame + 1 < PAST_FRAMES_MAX && pastFrameRemainingDurations[shotFrame + 1] > 0.0f &&
+				pastFrameRemainingDurations[shotFrame + 1] <= shotTime) {
+			++shotFrame;
+		}
 		
-		for(int offset = (ENTITY_COUNT_MAX-1)*ENTITY_SIZE; offset >= 0; offset -= ENTITY_SIZE) {
+		for(int frame = shotFrame; frame >= 1; --frame) {
+			float flightTime = shotTime - pastFrameRemainingDurations[frame];
+			float bulletX = posX + flightTime * velX;
+			float bulletY = posY + flightTime * velY;
 			
-			if(entities[offset + IN_USE] == 1.0) {
-				if(entities[offset + KIND] == KIND_VAL_TRAP){
-					g.rotate(angle + offset, entities[offset + POSITION_X], entities[offset + POSITION_Y]);
-				}
-				g.translate(entities[offset + POSITION_X], entities[offset + POSITION_Y]);
-				g.scale(entities[offset + DIMENSION_X] / 2, entities[offset + DIMENSION_Y] / 2);
+			for(int id : userIDs) {
+				int offset = frame * FRAME_SIZE + id * ENTITY_SIZE;
 				
-				int tex_idx = Math.round(entities[offset + TEX_INDEX]);
-				
-				if(tex_idx == 0) {
-					g.setColor(new Color(entities[offset + COLOR_R], entities[offset + COLOR_G], entities[offset + COLOR_B]));
-					g.fillOval(-1, -1, 2, 2);
+				if(id != shooterID && entities[offset + IN_USE] == 1.0f && entities[offset + COLLISION_ENABLED] == 1.0f) {
+					float radiusSum = 0.5f * (diameter + Math.max(entities[offset + DIMENSION_X], entities[offset + DIMENSION_Y]));
+					float distanceX = entities[offset + POSITION_X] - bulletX;
+					float distanceY = entities[offset + POSITION_Y] - bulletY;
 					
-				} else {
-					g.drawImage(textures[tex_idx], -1, 1, 2, -2, null);
-					if(entities[offset + REVERSED] > 0) {
-						g.setColor(new Color(1.0f, 0.0f, 0.0f, 0.5f));
-						g.fillOval(-1, -1, 2, 2);
+					if(distanceX * distanceX + distanceY * distanceY <= radiusSum * radiusSum) {
+						return id;
 					}
-					if(entities[offset + KIND] == KIND_VAL_PLAYER){
-						int playerIdx = -1;
-						for(int i = 0; i < userIDs.length; ++i) {
-							if((offset / ENTITY_SIZE) == userIDs[i]) {
-								playerIdx = i;
-								break;
-							}
-						}
-						
-						String name = usernames[playerIdx];
-						g.scale(0.05, -0.05);
-						g.setFont(new Font(g.getFont().getName(), Font.PLAIN, 10));
-						g.translate(-g.getFontMetrics().stringWidth(name)/2, g.getFontMetrics().getHeight() / 4);
-						g.setColor(Color.WHITE);
-						g.drawString(name, 0, 0);
-					}
-					
-					
 				}
-				
-				g.setTransform(baseTrans);
 			}
 		}
-	}
-	
-	private void renderParticles(Graphics2D g) {
-		AffineTransform baseTrans = g.getTransform();
-		
-		for(int offset = 0; offset < (PARTICLE_COUNT_MAX * ENTITY_SIZE); offset += ENTITY_SIZE) {
-			g.translate(particles[offset + POSITION_X], particles[offset + POSITION_Y]);
-			g.scale(particles[offset + DIMENSION_X] / 2, particles[offset + DIMENSION_Y] / 2);
-			g.setColor(new Color(particles[offset + COLOR_R], particles[offset + COLOR_G], particles[offset + COLOR_B]));
-			g.fillOval(-1, -1, 2, 2);
-			g.setTransform(baseTrans);
-		}
-	}
-
-	private void renderHUD(Graphics2D g) {
-		Font oldFont = g.getFont();
-		Color oldColor = g.getColor();
-		
-		if(remainingGameDuration > GAME_DURATION) {
-			renderInfoScreen(g, oldFont, new Color(100, 100, 100, 220), "Deuterium", "Preparing game... " + scores.length + " players have joined", "Made with love by: Paul Lonauer, Philipp Stadler, Michael Temper");
-		} else if(remainingGameDuration <= 0) {
-			renderWinner(g, oldFont);
-		}
 		
-		g.setFont(oldFont);
-		g.setColor(oldColor);
-		
-		renderScores(g, oldFont);
-		
-		g.setFont(oldFont);
-		g.setColor(oldColor);
-		
-		renderRemainingTime(g, oldFont);
-		
-		g.setFont(oldFont);
-		g.setColor(oldColor);
-	}
-
-	private void renderScores(Graphics2D g, Font baseFont) {
-		final int MAX_VISIBLE_NAMES = 5;
-		// Pixels from the edge of the window top and right
-		final int HIGHSCORE_PADDING_TOP = 25;
-		final int HIGHSCORE_PADDING_RIGHT = 20;
-		final int HIGHSCORE_WIDTH = Shell.WIDTH / 5;
-		final int HIGHSCORE_LEFT = Shell.WIDTH - HIGHSCORE_PADDING_RIGHT - HIGHSCORE_WIDTH;
-		final int HIGHSCORE_FONT_HEIGHT = 13; 
-		final int HIGHSCORE_FONT_BOLD_HEIGHT = 15;
-		final int HIGHSCORE_LINE_HEIGHT = (int) (HIGHSCORE_FONT_HEIGHT * 1.7);
-		
-		Font newFont = new Font(baseFont.getFontName(), Font.PLAIN, HIGHSCORE_FONT_HEIGHT);
-		Font boldFont = new Font(baseFont.getFontName(), Font.BOLD, HIGHSCORE_FONT_BOLD_HEIGHT);
-		
-		g.setFont(newFont);
-		g.setColor(Color.WHITE);
-		FontMetrics metrics = g.getFontMetrics(newFont);
-		
-		for(int playerIdx = 0; playerIdx < usernames.length && playerIdx < MAX_VISIBLE_NAMES; ++playerIdx) {
-			if(userIDs[playerIdx] == localPlayerID) {
-				g.setFont(boldFont);
-			}
-			
-			// y position of the baseline
-			final int y = HIGHSCORE_PADDING_TOP + playerIdx * HIGHSCORE_LINE_HEIGHT + HIGHSCORE_FONT_HEIGHT;
-			
-			g.drawString(usernames[playerIdx].toUpperCase(), HIGHSCORE_LEFT, y);
-			
-			String scoreString = String.valueOf(scores[playerIdx]);
-			
-			final int scoreX = Shell.WIDTH - HIGHSCORE_PADDING_RIGHT - metrics.stringWidth(scoreString);
-			g.drawString(scoreString, scoreX, y);
-			
-			if(userIDs[playerIdx] == localPlayerID) {
-				g.setFont(newFont);
-			}
-		}
-	}
-
-	private void renderRemainingTime(Graphics2D g, Font baseFont) {
-		final int REMAINING_TIME_PADDING = 14;
-		final int REMAINING_TIME_FONT_HEIGHT = 28;
-		
-		float time = (remainingGameDuration > GAME_DURATION) ? (remainingGameDuration - GAME_DURATION) : remainingGameDuration;
-		String timeStr = formatDuration(time);
-		
-		Font timeFont = new Font(baseFont.getFontName(), Font.BOLD, REMAINING_TIME_FONT_HEIGHT);
-		g.setColor(Color.WHITE);
-		g.setFont(timeFont);
-		
-		FontMetrics metr = g.getFontMetrics(timeFont);
-		
-		float x = 0.5f * (Shell.WIDTH - metr.stringWidth(timeStr));
-		float y = REMAINING_TIME_PADDING + metr.getHeight();
-		g.drawString(timeStr, x, y);
-	}
-
-	private String formatDuration(float duration) {
-		if(duration > 0) {
-			int remainingSecs = (int) Math.ceil(duration);
-			int minutes = remainingSecs / 60;
-			int seconds = remainingSecs % 60;
-			
-			StringBuilder timeStr = new StringBuilder(5);
-			
-			if(minutes < 10) {
-				timeStr.append('0');
-			}
-			
-			timeStr.append(minutes);
-			timeStr.append(':');
-			
-			if(seconds < 10) {
-				timeStr.append('0');
-			}
-			timeStr.append(seconds);
-			
-			return timeStr.toString();
-		} else {
-			return "00:00";
-		}
-	}
-
-	private void renderWinner(Graphics2D g, Font baseFont) {
-		int winnerIdx = findWinnerIdx();
-		boolean localWin = winnerIdx == findLocalPlayerScoreIdx();
-		String winnerUsername = usernames[winnerIdx];
-		
-		String winnerMsg = (winnerUsername + " got the job!").toUpperCase();
-		String localMsg = (localWin ? "Fantastic, you won! Call yourself star of the solar system!" : "You lost! Maybe next time, little planet.").toUpperCase();
-		Color bgColor = localWin ? new Color(20, 140, 20, 200) : new Color(140, 20, 20, 200);
-		
-		renderInfoScreen(g, baseFont, bgColor, winnerMsg, localMsg, "");
-	}
-	
-	private void renderInfoScreen(Graphics2D g, Font baseFont, Color backgroundColor, String bigWords, String smallWords, String smallWords2) {
-		final int WINNER_PADDING_TOP = (int) (Shell.HEIGHT * 0.4f);
-		final int WINNER_FONT_HEIGHT = 22;
-		Font bigWordsFont = new Font(baseFont.getFontName(), Font.BOLD, WINNER_FONT_HEIGHT);
-		Font smallWordsFont = new Font(baseFont.getFontName(), Font.PLAIN, WINNER_FONT_HEIGHT / 2);
-		
-		bigWords = bigWords.toUpperCase();
-		smallWords = smallWords.toUpperCase();
-		//smallWords2 = smallWords2.toUpperCase();
-		
-		g.setColor(backgroundColor);
-		g.fillRect(0, 0, Shell.WIDTH, Shell.HEIGHT);
-		
-		g.setColor(Color.WHITE);
-		g.setFont(bigWordsFont);
-		FontMetrics metrics = g.getFontMetrics(bigWordsFont);
-		
-		float x = 0.5f * (Shell.WIDTH - metrics.stringWidth(bigWords));
-		float y = WINNER_PADDING_TOP + metrics.getHeight();
-		
-		g.drawString(bigWords, x, y);
-		
-		y += metrics.getHeight();
-		
-		g.setFont(smallWordsFont);
-		metrics = g.getFontMetrics(smallWordsFont);
-		
-		x = 0.5f * (Shell.WIDTH - metrics.stringWidth(smallWords));
-		
-		g.drawString(smallWords, x, y);
-		
-		y += metrics.getHeight();
-		x = 0.5f * (Shell.WIDTH - metrics.stringWidth(smallWords2));
-		
-		g.drawString(smallWords2, x, y);
-	}
-
-	private int findWinnerIdx() {
-		int winnerIdx = -1;
-		int winnerScore = Integer.MIN_VALUE;
-		
-		for(int i = 0; i < scores.length; ++i) {
-			if(scores[i] > winnerScore) {
-				winnerIdx = i;
-				winnerScore = scores[i];
-			}
-		}
-		
-		return winnerIdx;
+		return -1;
 	}
 	
-	private int findLocalPlayerScoreIdx() {
-		for(int i = 0; i < scores.length; ++i) {
-			if(userIDs[i] == localPlayerID) {
-				return i;
+	/**
+	 * Called by the server when it applied a steering input of a player, so the client can
+	 * tell which of its predicted inputs are already part of the authoritative state, see
+	 * {@link ClientWorld#predictLocalPlayer(int, float, float, float)}.
+	 * 
+	 * @param playerID
+	 * @param sequence
+	 */
+	public void acknowledgeInput(int playerID, int sequence) {
+		for(int i = 0; i < userIDs.length; ++i) {
+			if(userIDs[i] == playerID) {
+				acknowledgedInputs[i] = Math.max(acknowledgedInputs[i], sequence);
+				return;
 			}
 		}
-		
-		return -1;
 	}
 	
 	public boolean isOccuppied(float centerX, float centerY, float radius) {
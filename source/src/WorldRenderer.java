@@ -0,0 +1,725 @@
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Composite;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Transparency;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Draws a {@link ClientWorld}, including textures, particle trails and the HUD.
+ * 
+ * Everything to do with AWT and images lives here rather than in the world, so the server never loads it.
+ * Textures only start loading in the background once the first renderer is created, and entities are drawn
+ * as pre-rendered sprites from a {@link SpriteCache}.
+ */
+public class WorldRenderer {
+	private static final int PARTICLE_COUNT_MAX = 4096;
+	private static final float PARTICLE_LIFETIME = 0.4f;
+	private static final float PARTICLE_SPAWN_INTERVAL = 0.01f;
+	private static final float PARTICLE_SPREAD = 3.5f;
+	/** Maximum speed particles drift away from where they spawned */
+	private static final float PARTICLE_DRIFT = 6.0f;
+	private static final float PARTICLE_SIZE = 2.0f;
+	
+	/** Particles fade out in this many steps, each with a prepared composite */
+	private static final int PARTICLE_FADE_STEPS = 16;
+	private static final Composite[] particleFadeComposites = new Composite[PARTICLE_FADE_STEPS];
+	static {
+		for(int i = 0; i < PARTICLE_FADE_STEPS; ++i) {
+			particleFadeComposites[i] = AlphaComposite.getInstance(AlphaComposite.SRC_OVER, (i + 1) / (float) PARTICLE_FADE_STEPS);
+		}
+	}
+	
+	private static final Color PREPARE_BACKGROUND_COLOR = new Color(100, 100, 100, 220);
+	private static final Color WIN_BACKGROUND_COLOR = new Color(20, 140, 20, 200);
+	private static final Color LOSE_BACKGROUND_COLOR = new Color(140, 20, 20, 200);
+	
+	private static final String PREPARE_TITLE = "DEUTERIUM";
+	private static final String PREPARE_CREDITS = "Made with love by: Paul Lonauer, Philipp Stadler, Michael Temper";
+	private static final String WIN_MESSAGE = "Fantastic, you won! Call yourself star of the solar system!".toUpperCase();
+	private static final String LOSE_MESSAGE = "You lost! Maybe next time, little planet.".toUpperCase();
+	
+	private static final int MAX_VISIBLE_NAMES = 5;
+	private static final int HIGHSCORE_FONT_HEIGHT = 13;
+	private static final int HIGHSCORE_FONT_BOLD_HEIGHT = 15;
+	private static final int REMAINING_TIME_FONT_HEIGHT = 28;
+	private static final int WINNER_FONT_HEIGHT = 22;
+	private static final int NAME_FONT_HEIGHT = 10;
+	
+	private static final int HUD_SCREEN_GAME = 0;
+	private static final int HUD_SCREEN_PREPARE = 1;
+	private static final int HUD_SCREEN_WINNER = 2;
+	
+	/** Bits per color channel of the palette, entity colors are rounded to the nearest palette color */
+	private static final int PALETTE_CHANNEL_BITS = 5;
+	private static final int PALETTE_CHANNEL_MAX = (1 << PALETTE_CHANNEL_BITS) - 1;
+	
+	/**
+	 * Colors for entities and particles indexed by quantized RGB, created the first time they are used.
+	 * Colors are immutable, so renderers on different threads may share them.
+	 */
+	private static final Color[] palette = new Color[1 << (3 * PALETTE_CHANNEL_BITS)];
+	
+	private static TextureAtlas textures;
+	
+	private final SpriteCache sprites;
+	
+	private double angle = 0;
+	private final ParticleSystem particles;
+	private float nextParticleSpawnWaitTime;
+	
+	// Nanoseconds spent in each phase of all frames drawn so far, see RenderBenchmark
+	private long particleNanos;
+	private long entityNanos;
+	private long hudNanos;
+	
+	// State of the world as of the frame being drawn
+	private ClientWorld world;
+	private float[] entities;
+	private String[] usernames;
+	private int[] userIDs;
+	private int[] scores;
+	private int localPlayerID;
+	private float remainingGameDuration;
+	
+	/** Transform from world coordinates to the window, recomputed once per frame and reused for every name label */
+	private final AffineTransform worldTrans = new AffineTransform();
+	private float cameraPositionX;
+	private float cameraPositionY;
+	
+	/** IDs of the entities near the visible part of the world in the frame being drawn */
+	private final int[] visibleIDs = new int[World.ENTITY_COUNT_MAX];
+	
+	// Fonts derived from the font of the graphics, only rebuilt if that font changes
+	private Font baseFont;
+	private Font nameFont;
+	private Font scoreFont;
+	private Font scoreBoldFont;
+	private Font timeFont;
+	private Font infoBigFont;
+	private Font infoSmallFont;
+	private FontMetrics nameMetrics;
+	private FontMetrics scoreMetrics;
+	private FontMetrics timeMetrics;
+	private FontMetrics infoBigMetrics;
+	private FontMetrics infoSmallMetrics;
+	
+	// Name labels below the players, indexed by entity ID and remeasured when the name changes. Names are compared
+	// with equals, the roster keeps the same instances as long as nothing changes, but does not promise to.
+	private final String[] labelNames = new String[World.ENTITY_COUNT_MAX];
+	private final int[] labelWidths = new int[World.ENTITY_COUNT_MAX];
+	
+	// Highscore lines, formatted again only if name or score in that line changes
+	private final String[] highscoreNameSources = new String[MAX_VISIBLE_NAMES];
+	private final String[] highscoreNames = new String[MAX_VISIBLE_NAMES];
+	private final int[] highscoreValues = new int[MAX_VISIBLE_NAMES];
+	private final String[] highscoreValueStrings = new String[MAX_VISIBLE_NAMES];
+	private final int[] highscoreValueWidths = new int[MAX_VISIBLE_NAMES];
+	
+	private int timeSeconds = -1;
+	private String timeString;
+	private int timeWidth;
+	
+	private int preparePlayerCount = -1;
+	private String prepareMessage;
+	
+	private String winnerSource;
+	private String winnerMessage;
+	private boolean localWin;
+	
+	// The HUD is drawn into an image, which is only drawn again when something on it changed
+	private GraphicsConfiguration hudConfig;
+	private BufferedImage hudImage;
+	private boolean hudOutdated = true;
+	/** Rows of the HUD image from the top that have something on them */
+	private int hudHeight;
+	
+	// What the HUD image shows apart from the cached strings
+	private int hudScreen = -1;
+	private int hudVisibleNames;
+	private int hudLocalNameIdx;
+	
+	public WorldRenderer() {
+		this(PARTICLE_COUNT_MAX);
+	}
+	
+	/**
+	 * @param particleCountMax maximum number of trail particles alive at the same time, older ones make room for new ones
+	 */
+	public WorldRenderer(int particleCountMax) {
+		loadTextures();
+		sprites = new SpriteCache(textures);
+		particles = new ParticleSystem(particleCountMax, PARTICLE_LIFETIME);
+	}
+	
+	private static synchronized void loadTextures() {
+		if(textures == null) {
+			textures = TextureAtlas.loadAsync(null, "/resources/earth.png", "/resources/moon_small.png", "/resources/black_hole_soak.png");
+		}
+	}
+	
+	/**
+	 * Gets the palette color closest to the given color.
+	 * 
+	 * @param r red from 0 to 1
+	 * @param g green from 0 to 1
+	 * @param b blue from 0 to 1
+	 * @return shared color instance
+	 */
+	private static Color colorFor(float r, float g, float b) {
+		int ri = quantizeChannel(r);
+		int gi = quantizeChannel(g);
+		int bi = quantizeChannel(b);
+		int idx = (((ri << PALETTE_CHANNEL_BITS) | gi) << PALETTE_CHANNEL_BITS) | bi;
+		
+		Color color = palette[idx];
+		if(color == null) {
+			color = new Color(ri * 255 / PALETTE_CHANNEL_MAX, gi * 255 / PALETTE_CHANNEL_MAX, bi * 255 / PALETTE_CHANNEL_MAX);
+			palette[idx] = color;
+		}
+		
+		return color;
+	}
+	
+	private static int quantizeChannel(float channel) {
+		return Math.round(Math.min(Math.max(channel, 0.0f), 1.0f) * PALETTE_CHANNEL_MAX);
+	}
+	
+	/**
+	 * Draws the world as seen by the local player, along with the HUD.
+	 * 
+	 * Apart from saving the transform of the graphics, this does not allocate unless the roster, the scores,
+	 * the displayed second or the font change. Only then is the HUD laid out and drawn again.
+	 * 
+	 * @param world state to draw, must not change while drawing
+	 * @param dt seconds since the last frame
+	 * @param g graphics of the window, transform and color are restored afterwards
+	 */
+	public void draw(ClientWorld world, float dt, Graphics2D g) {
+		this.world = world;
+		entities = world.entities;
+		usernames = world.getUsernames();
+		userIDs = world.getUserIDs();
+		scores = world.getScores();
+		localPlayerID = world.localPlayerID;
+		remainingGameDuration = world.getRemainingGameDuration();
+		
+		AffineTransform oldTrans = g.getTransform();
+		Color oldColor = g.getColor();
+		
+		updateFonts(g);
+
+		angle += dt * 1.7;
+		
+		// Set transform so that we can draw in y-up normalized device coordinates
+		worldTrans.setTransform(oldTrans);
+		worldTrans.translate(Shell.WIDTH / 2.0, Shell.HEIGHT / 2.0);
+		worldTrans.scale(1, -1);
+		
+		// Set up camera transform, is zero if no local player ID defined
+		cameraPositionX = world.getCameraPositionX();
+		cameraPositionY = world.getCameraPositionY();
+		worldTrans.translate(-cameraPositionX, -cameraPositionY);
+		
+		long particleStart = System.nanoTime();
+		updateParticles(dt); // Have to do this here because different threads have different worlds.
+		
+		// Sprites are drawn untransformed at window coordinates
+		renderParticles(g);
+		
+		long entityStart = System.nanoTime();
+		renderEntitites(g, oldTrans);
+		
+		g.setColor(oldColor);
+		g.setTransform(oldTrans);
+		
+		long hudStart = System.nanoTime();
+		renderHUD(g);
+		
+		g.setColor(oldColor);
+		g.setTransform(oldTrans);
+		
+		long end = System.nanoTime();
+		particleNanos += entityStart - particleStart;
+		entityNanos += hudStart - entityStart;
+		hudNanos += end - hudStart;
+	}
+	
+	/**
+	 * @return nanoseconds spent updating and drawing particles in all frames so far
+	 */
+	public long getParticleNanos() {
+		return particleNanos;
+	}
+	
+	/**
+	 * @return nanoseconds spent drawing entities and name labels in all frames so far
+	 */
+	public long getEntityNanos() {
+		return entityNanos;
+	}
+	
+	/**
+	 * @return nanoseconds spent updating and drawing the HUD in all frames so far
+	 */
+	public long getHUDNanos() {
+		return hudNanos;
+	}
+	
+	/**
+	 * @return true once the textures are loaded, until then entities are drawn with placeholders
+	 */
+	public boolean isTexturesReady() {
+		return textures.isReady();
+	}
+	
+	/**
+	 * @return number of trail particles alive after the last frame, including ones that faded out completely
+	 */
+	public int getParticleCount() {
+		return particles.getCount();
+	}
+	
+	private void updateFonts(Graphics2D g) {
+		Font font = g.getFont();
+		if(font.equals(baseFont)) {
+			return;
+		}
+		
+		baseFont = font;
+		nameFont = new Font(font.getName(), Font.PLAIN, NAME_FONT_HEIGHT);
+		scoreFont = new Font(font.getFontName(), Font.PLAIN, HIGHSCORE_FONT_HEIGHT);
+		scoreBoldFont = new Font(font.getFontName(), Font.BOLD, HIGHSCORE_FONT_BOLD_HEIGHT);
+		timeFont = new Font(font.getFontName(), Font.BOLD, REMAINING_TIME_FONT_HEIGHT);
+		infoBigFont = new Font(font.getFontName(), Font.BOLD, WINNER_FONT_HEIGHT);
+		infoSmallFont = new Font(font.getFontName(), Font.PLAIN, WINNER_FONT_HEIGHT / 2);
+		
+		nameMetrics = g.getFontMetrics(nameFont);
+		scoreMetrics = g.getFontMetrics(scoreFont);
+		timeMetrics = g.getFontMetrics(timeFont);
+		infoBigMetrics = g.getFontMetrics(infoBigFont);
+		infoSmallMetrics = g.getFontMetrics(infoSmallFont);
+		
+		// Cached measurements were made with the old fonts
+		Arrays.fill(labelNames, null);
+		Arrays.fill(highscoreNameSources, null);
+		Arrays.fill(highscoreValueStrings, null);
+		timeSeconds = -1;
+		hudOutdated = true;
+	}
+
+	private void renderEntitites(Graphics2D g, AffineTransform baseTrans) {
+		int visibleCount = world.findEntitiesNear(cameraPositionX - World.VIEW_WIDTH / 2.0f, cameraPositionY - World.VIEW_HEIGHT / 2.0f,
+		                                          cameraPositionX + World.VIEW_WIDTH / 2.0f, cameraPositionY + World.VIEW_HEIGHT / 2.0f,
+		                                          visibleIDs);
+		
+		// Draw in order of descending IDs like before, so overlapping entities do not change order when moving between cells
+		Arrays.sort(visibleIDs, 0, visibleCount);
+		
+		for(int i = visibleCount - 1; i >= 0; --i) {
+			int offset = visibleIDs[i] * World.ENTITY_SIZE;
+			
+			if(entities[offset + World.IN_USE] == 1.0) {
+				float x = entities[offset + World.POSITION_X];
+				float y = entities[offset + World.POSITION_Y];
+				float width = entities[offset + World.DIMENSION_X];
+				float height = entities[offset + World.DIMENSION_Y];
+				
+				// Rotated sprites and name labels reach beyond half the dimension
+				if(!isVisible(x, y, Math.max(width, height))) {
+					continue;
+				}
+				
+				int tex_idx = Math.round(entities[offset + World.TEX_INDEX]);
+				
+				if(tex_idx == 0) {
+					sprites.drawCircle(g, colorFor(entities[offset + World.COLOR_R], entities[offset + World.COLOR_G], entities[offset + World.COLOR_B]), width, height, toWindowX(x), toWindowY(y));
+					
+				} else {
+					boolean reversed = entities[offset + World.REVERSED] > 0;
+					
+					if(entities[offset + World.KIND] == World.KIND_VAL_TRAP){
+						sprites.drawRotatedTexture(g, tex_idx, width, height, angle + offset, reversed, toWindowX(x), toWindowY(y));
+					} else {
+						sprites.drawTexture(g, tex_idx, width, height, reversed, toWindowX(x), toWindowY(y));
+					}
+					
+					if(entities[offset + World.KIND] == World.KIND_VAL_PLAYER){
+						g.setTransform(worldTrans);
+						g.translate(x, y);
+						g.scale(width / 2, height / 2);
+						renderNameLabel(g, offset / World.ENTITY_SIZE);
+						g.setTransform(baseTrans);
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @param extent distance from the center up to which something is drawn
+	 * @return true if anything drawn around the given point would end up in the window
+	 */
+	private boolean isVisible(float x, float y, float extent) {
+		return Math.abs(x - cameraPositionX) - extent < World.VIEW_WIDTH / 2.0f &&
+		       Math.abs(y - cameraPositionY) - extent < World.VIEW_HEIGHT / 2.0f;
+	}
+	
+	private float toWindowX(float worldX) {
+		return Shell.WIDTH / 2.0f + (worldX - cameraPositionX);
+	}
+	
+	private float toWindowY(float worldY) {
+		return Shell.HEIGHT / 2.0f - (worldY - cameraPositionY);
+	}
+	
+	private void renderNameLabel(Graphics2D g, int playerID) {
+		int playerIdx = -1;
+		for(int i = 0; i < userIDs.length; ++i) {
+			if(playerID == userIDs[i]) {
+				playerIdx = i;
+				break;
+			}
+		}
+		
+		if(playerIdx == -1) {
+			// Snapshot arrived before the roster event, no name to show yet
+			return;
+		}
+		
+		String name = usernames[playerIdx];
+		if(!Objects.equals(name, labelNames[playerID])) {
+			labelNames[playerID] = name;
+			labelWidths[playerID] = nameMetrics.stringWidth(name);
+		}
+		
+		g.scale(0.05, -0.05);
+		g.setFont(nameFont);
+		g.translate(-labelWidths[playerID]/2, nameMetrics.getHeight() / 4);
+		g.setColor(Color.WHITE);
+		g.drawString(name, 0, 0);
+	}
+	
+	private void renderParticles(Graphics2D g) {
+		Composite oldComposite = g.getComposite();
+		int fadeStep = -1;
+		
+		// Oldest first, so the fade step only ever increases and the composite changes at most once per step
+		for(int i = 0; i < particles.getCount(); ++i) {
+			float x = particles.getX(i);
+			float y = particles.getY(i);
+			float size = particles.getSize(i);
+			
+			if(!isVisible(x, y, size)) {
+				continue;
+			}
+			
+			int step = Math.min((int) (particles.getOpacity(i) * PARTICLE_FADE_STEPS), PARTICLE_FADE_STEPS) - 1;
+			if(step < 0) {
+				// Faded out completely
+				continue;
+			}
+			
+			if(step != fadeStep) {
+				fadeStep = step;
+				g.setComposite(particleFadeComposites[step]);
+			}
+			
+			sprites.drawCircle(g, Color.WHITE, size, size, toWindowX(x), toWindowY(y));
+		}
+		
+		g.setComposite(oldComposite);
+	}
+
+	private void renderHUD(Graphics2D g) {
+		updateHUDContents();
+		
+		GraphicsConfiguration gc = g.getDeviceConfiguration();
+		if(gc != hudConfig) {
+			hudConfig = gc;
+			hudImage = gc.createCompatibleImage(Shell.WIDTH, Shell.HEIGHT, Transparency.TRANSLUCENT);
+			hudOutdated = true;
+		}
+		
+		if(hudOutdated) {
+			redrawHUD(g);
+			hudOutdated = false;
+		}
+		
+		// During the game, only the top of the image has something on it
+		g.drawImage(hudImage, 0, 0, Shell.WIDTH, hudHeight, 0, 0, Shell.WIDTH, hudHeight, null);
+	}
+	
+	/**
+	 * Formats everything the HUD shows that changed since the last frame, and marks the HUD image as outdated
+	 * if anything did.
+	 */
+	private void updateHUDContents() {
+		int screen;
+		if(remainingGameDuration > World.GAME_DURATION) {
+			screen = HUD_SCREEN_PREPARE;
+			
+			if(scores.length != preparePlayerCount) {
+				preparePlayerCount = scores.length;
+				prepareMessage = ("Preparing game... " + preparePlayerCount + " players have joined").toUpperCase();
+				hudOutdated = true;
+			}
+		} else if(remainingGameDuration <= 0) {
+			screen = HUD_SCREEN_WINNER;
+			
+			int winnerIdx = findWinnerIdx();
+			String winnerUsername = (winnerIdx == -1) ? null : usernames[winnerIdx];
+			boolean win = winnerIdx != -1 && winnerIdx == findLocalPlayerScoreIdx();
+			
+			if(!Objects.equals(winnerUsername, winnerSource) || win != localWin) {
+				winnerSource = winnerUsername;
+				winnerMessage = (winnerUsername == null) ? null : (winnerUsername + " got the job!").toUpperCase();
+				localWin = win;
+				hudOutdated = true;
+			}
+		} else {
+			screen = HUD_SCREEN_GAME;
+		}
+		
+		if(screen != hudScreen) {
+			hudScreen = screen;
+			hudOutdated = true;
+		}
+		
+		int visibleNames = Math.min(usernames.length, MAX_VISIBLE_NAMES);
+		int localNameIdx = -1;
+		
+		for(int playerIdx = 0; playerIdx < visibleNames; ++playerIdx) {
+			if(!Objects.equals(usernames[playerIdx], highscoreNameSources[playerIdx])) {
+				highscoreNameSources[playerIdx] = usernames[playerIdx];
+				highscoreNames[playerIdx] = usernames[playerIdx].toUpperCase();
+				hudOutdated = true;
+			}
+			
+			if(highscoreValueStrings[playerIdx] == null || scores[playerIdx] != highscoreValues[playerIdx]) {
+				highscoreValues[playerIdx] = scores[playerIdx];
+				highscoreValueStrings[playerIdx] = String.valueOf(scores[playerIdx]);
+				highscoreValueWidths[playerIdx] = scoreMetrics.stringWidth(highscoreValueStrings[playerIdx]);
+				hudOutdated = true;
+			}
+			
+			if(userIDs[playerIdx] == localPlayerID) {
+				localNameIdx = playerIdx;
+			}
+		}
+		
+		if(visibleNames != hudVisibleNames || localNameIdx != hudLocalNameIdx) {
+			hudVisibleNames = visibleNames;
+			hudLocalNameIdx = localNameIdx;
+			hudOutdated = true;
+		}
+		
+		float time = (remainingGameDuration > World.GAME_DURATION) ? (remainingGameDuration - World.GAME_DURATION) : remainingGameDuration;
+		int remainingSecs = (time > 0) ? (int) Math.ceil(time) : 0;
+		
+		if(remainingSecs != timeSeconds) {
+			timeSeconds = remainingSecs;
+			timeString = formatDuration(remainingSecs);
+			timeWidth = timeMetrics.stringWidth(timeString);
+			hudOutdated = true;
+		}
+	}
+	
+	private void redrawHUD(Graphics2D g) {
+		Graphics2D hud = hudImage.createGraphics();
+		
+		hud.setComposite(AlphaComposite.Clear);
+		hud.fillRect(0, 0, Shell.WIDTH, Shell.HEIGHT);
+		hud.setComposite(AlphaComposite.SrcOver);
+		
+		// Text should look the same as if drawn to the window directly
+		hud.setRenderingHints(g.getRenderingHints());
+		
+		if(hudScreen == HUD_SCREEN_PREPARE) {
+			renderInfoScreen(hud, PREPARE_BACKGROUND_COLOR, PREPARE_TITLE, prepareMessage, PREPARE_CREDITS);
+		} else if(hudScreen == HUD_SCREEN_WINNER) {
+			renderWinner(hud);
+		}
+		
+		int scoresBottom = renderScores(hud);
+		int timeBottom = renderRemainingTime(hud);
+		
+		hudHeight = (hudScreen == HUD_SCREEN_GAME) ? Math.min(Math.max(scoresBottom, timeBottom), Shell.HEIGHT) : Shell.HEIGHT;
+		
+		hud.dispose();
+	}
+
+	/**
+	 * @return y coordinate below everything drawn
+	 */
+	private int renderScores(Graphics2D g) {
+		// Pixels from the edge of the window top and right
+		final int HIGHSCORE_PADDING_TOP = 25;
+		final int HIGHSCORE_PADDING_RIGHT = 20;
+		final int HIGHSCORE_WIDTH = Shell.WIDTH / 5;
+		final int HIGHSCORE_LEFT = Shell.WIDTH - HIGHSCORE_PADDING_RIGHT - HIGHSCORE_WIDTH;
+		final int HIGHSCORE_LINE_HEIGHT = (int) (HIGHSCORE_FONT_HEIGHT * 1.7);
+		
+		g.setFont(scoreFont);
+		g.setColor(Color.WHITE);
+		
+		for(int playerIdx = 0; playerIdx < hudVisibleNames; ++playerIdx) {
+			if(playerIdx == hudLocalNameIdx) {
+				g.setFont(scoreBoldFont);
+			}
+			
+			// y position of the baseline
+			final int y = HIGHSCORE_PADDING_TOP + playerIdx * HIGHSCORE_LINE_HEIGHT + HIGHSCORE_FONT_HEIGHT;
+			
+			g.drawString(highscoreNames[playerIdx], HIGHSCORE_LEFT, y);
+			
+			final int scoreX = Shell.WIDTH - HIGHSCORE_PADDING_RIGHT - highscoreValueWidths[playerIdx];
+			g.drawString(highscoreValueStrings[playerIdx], scoreX, y);
+			
+			if(playerIdx == hudLocalNameIdx) {
+				g.setFont(scoreFont);
+			}
+		}
+		
+		// Below the descent of the last line, even in bold
+		return HIGHSCORE_PADDING_TOP + hudVisibleNames * HIGHSCORE_LINE_HEIGHT + HIGHSCORE_FONT_HEIGHT;
+	}
+
+	/**
+	 * @return y coordinate below everything drawn
+	 */
+	private int renderRemainingTime(Graphics2D g) {
+		final int REMAINING_TIME_PADDING = 14;
+		
+		g.setColor(Color.WHITE);
+		g.setFont(timeFont);
+		
+		float x = 0.5f * (Shell.WIDTH - timeWidth);
+		float y = REMAINING_TIME_PADDING + timeMetrics.getHeight();
+		g.drawString(timeString, x, y);
+		
+		return (int) Math.ceil(y) + timeMetrics.getDescent();
+	}
+
+	private String formatDuration(int remainingSecs) {
+		if(remainingSecs > 0) {
+			int minutes = remainingSecs / 60;
+			int seconds = remainingSecs % 60;
+			
+			StringBuilder timeStr = new StringBuilder(5);
+			
+			if(minutes < 10) {
+				timeStr.append('0');
+			}
+			
+			timeStr.append(minutes);
+			timeStr.append(':');
+			
+			if(seconds < 10) {
+				timeStr.append('0');
+			}
+			timeStr.append(seconds);
+			
+			return timeStr.toString();
+		} else {
+			return "00:00";
+		}
+	}
+
+	private void renderWinner(Graphics2D g) {
+		if(winnerMessage == null) {
+			return;
+		}
+		
+		renderInfoScreen(g, localWin ? WIN_BACKGROUND_COLOR : LOSE_BACKGROUND_COLOR, winnerMessage, localWin ? WIN_MESSAGE : LOSE_MESSAGE, "");
+	}
+	
+	/**
+	 * Covers the window and shows some centered lines of text. Big and small words are expected in upper case already.
+	 */
+	private void renderInfoScreen(Graphics2D g, Color backgroundColor, String bigWords, String smallWords, String smallWords2) {
+		final int WINNER_PADDING_TOP = (int) (Shell.HEIGHT * 0.4f);
+		
+		g.setColor(backgroundColor);
+		g.fillRect(0, 0, Shell.WIDTH, Shell.HEIGHT);
+		
+		g.setColor(Color.WHITE);
+		g.setFont(infoBigFont);
+		FontMetrics metrics = infoBigMetrics;
+		
+		float x = 0.5f * (Shell.WIDTH - metrics.stringWidth(bigWords));
+		float y = WINNER_PADDING_TOP + metrics.getHeight();
+		
+		g.drawString(bigWords, x, y);
+		
+		y += metrics.getHeight();
+		
+		g.setFont(infoSmallFont);
+		metrics = infoSmallMetrics;
+		
+		x = 0.5f * (Shell.WIDTH - metrics.stringWidth(smallWords));
+		
+		g.drawString(smallWords, x, y);
+		
+		y += metrics.getHeight();
+		x = 0.5f * (Shell.WIDTH - metrics.stringWidth(smallWords2));
+		
+		g.drawString(smallWords2, x, y);
+	}
+
+	private int findWinnerIdx() {
+		int winnerIdx = -1;
+		int winnerScore = Integer.MIN_VALUE;
+		
+		for(int i = 0; i < scores.length; ++i) {
+			if(scores[i] > winnerScore) {
+				winnerIdx = i;
+				winnerScore = scores[i];
+			}
+		}
+		
+		return winnerIdx;
+	}
+	
+	private int findLocalPlayerScoreIdx() {
+		for(int i = 0; i < scores.length; ++i) {
+			if(userIDs[i] == localPlayerID) {
+				return i;
+			}
+		}
+		
+		return -1;
+	}
+
+	private void updateParticles(float dt) {
+		particles.update(dt);
+		
+		if(nextParticleSpawnWaitTime <= 0) {
+			nextParticleSpawnWaitTime += PARTICLE_SPAWN_INTERVAL;
+
+			for(int clientID: userIDs) {
+				float clientPosX = world.get(clientID, World.POSITION_X);
+				float clientPosY = world.get(clientID, World.POSITION_Y);
+
+				for (int i = 0; i < 7; i++) {
+					float yMod = (i - 3) * PARTICLE_SPREAD;
+					int iterations = 7 - (2 * Math.abs(i - 3));
+					for (int j = 0; j < iterations; j++) {
+						float xMod = (j - (iterations - 1) / 2) * PARTICLE_SPREAD;
+						particles.spawn(clientPosX + xMod, clientPosY + yMod,
+						                particles.nextRandom() * PARTICLE_DRIFT, particles.nextRandom() * PARTICLE_DRIFT,
+						                PARTICLE_SIZE);
+					}
+				}
+			}
+		} else {
+			nextParticleSpawnWaitTime -= dt;
+		}
+	}
+}